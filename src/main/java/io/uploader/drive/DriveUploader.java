@@ -36,6 +36,9 @@ import io.uploader.drive.auth.webbrowser.Browser;
 import io.uploader.drive.auth.webbrowser.SimpleBrowserImpl;
 import io.uploader.drive.config.Configuration;
 import io.uploader.drive.config.auth.AuthenticationSettingsImpl;
+import io.uploader.drive.drive.AccessTokenManager;
+import io.uploader.drive.drive.largefile.HttpClientUtils;
+import io.uploader.drive.drive.largefile.UploadSessionRecovery;
 import io.uploader.drive.gui.MainWindow;
 import io.uploader.drive.gui.dlg.MessageDialogs;
 import io.uploader.drive.gui.dlg.MessageDialogs.Response;
@@ -54,7 +57,6 @@ import com.google.api.client.extensions.java6.auth.oauth2.VerificationCodeReceiv
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -142,8 +144,9 @@ public class DriveUploader extends Application {
 		}
 		
 		try {
-			// initialize the transport
-			httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+			// initialize the transport (on the pool of connections shared with the large file engine),
+			// it follows the changes of the proxy settings
+			httpTransport = HttpClientUtils.getHttpTransport(Configuration.INSTANCE.getHttpProxySettings());
 
 			// initialize the data store factory
 			dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
@@ -180,8 +183,6 @@ public class DriveUploader extends Application {
 			// Set up authorization code flow.
 			Set<String> scopes = new HashSet<String>();
 			scopes.add(DriveScopes.DRIVE);
-			// old api for large file support (where upload takes more than one hour)
-			scopes.add("https://docs.google.com/feeds") ;
 	
 			final GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
 					httpTransport, JSON_FACTORY, clientSecrets, scopes)
@@ -289,6 +290,18 @@ public class DriveUploader extends Application {
 						.setApplicationName(APPLICATION_NAME).build();
 					
 					Configuration.INSTANCE.setCredential(result);
+					// the token is shared with the large file engine, and refreshed ahead of its expiry
+					AccessTokenManager.INSTANCE.manage(result);
+					
+					// resume the uploads interrupted during the previous run
+					Thread recovery = new Thread (new Runnable () {
+						@Override
+						public void run() {
+							UploadSessionRecovery.resumeAll(Configuration.INSTANCE) ;
+						}
+					}, "upload-recovery") ;
+					recovery.setDaemon(true) ;
+					recovery.start() ;
 					
 					//browser.close () ;
 					try {
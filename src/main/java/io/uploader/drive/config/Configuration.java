@@ -20,6 +20,8 @@ import io.uploader.drive.config.auth.HasAuthenticationSettings;
 import io.uploader.drive.config.proxy.HasProxySettings;
 import io.uploader.drive.config.proxy.Proxy;
 import io.uploader.drive.config.proxy.ProxySettingsImpl;
+import io.uploader.drive.config.upload.HasUploadSettings;
+import io.uploader.drive.config.upload.UploadSettingsImpl;
 
 import java.io.File;
 import java.io.IOException;
@@ -115,6 +117,8 @@ public enum Configuration implements HasConfiguration {
 	private final ProxySettingsImpl httpProxySettings = new ProxySettingsImpl ("proxy.http", 80, "http") ;
 	private final ProxySettingsImpl httpsProxySettings = new ProxySettingsImpl ("proxy.https", 443, "https") ;
 	
+	private final UploadSettingsImpl uploadSettings = new UploadSettingsImpl ("upload") ;
+	
 	private Credential credential = null ;
 	private AuthenticationSettingsImpl authenticationSettingsImpl = null ;
 
@@ -139,6 +143,7 @@ public enum Configuration implements HasConfiguration {
 		config.setThrowExceptionOnMissing(false);
 		httpProxySettings.setConfig(config);
 		httpsProxySettings.setConfig(config);
+		uploadSettings.setConfig(config);
 		
 		setProxy () ;
 	}
@@ -203,6 +208,13 @@ public enum Configuration implements HasConfiguration {
 	}
 	
 		
+	@Override
+	public HasUploadSettings getUploadSettings ()
+	{
+		return uploadSettings ;
+	}
+	
+		
 	@Override
 	public void updateProxy(Proxy newProxy) {
 		
@@ -20,6 +20,7 @@ import com.google.api.client.auth.oauth2.Credential;
 import io.uploader.drive.config.auth.HasAuthenticationSettings;
 import io.uploader.drive.config.proxy.HasProxySettings;
 import io.uploader.drive.config.proxy.Proxy;
+import io.uploader.drive.config.upload.HasUploadSettings;
 
 public interface HasConfiguration {
 	public String getAppName () ;
@@ -31,4 +32,5 @@ public interface HasConfiguration {
 	public String getTmpDirectory() ;
 	public Credential getCredential () ;
 	public HasAuthenticationSettings getAuthenticationSettings () ;
+	public HasUploadSettings getUploadSettings () ;
 }
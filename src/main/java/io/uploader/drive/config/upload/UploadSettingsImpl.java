@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.config.upload;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+public class UploadSettingsImpl implements HasUploadSettings
+{
+	final private Logger logger = LoggerFactory.getLogger(UploadSettingsImpl.class);
+	
+	public static final int defaultConcurrency = 4 ;
+	public static final int defaultMaxConcurrency = 16 ;
+	public static final int maxConcurrency = 32 ;
+	
+	// chunk sizes are set in kilobytes, and must be multiples of 512 KB (resumable upload protocol)
+	public static final int chunkSizeUnitKb = 512 ;
+	public static final int defaultMinChunkSizeKb = 1024 ;
+	public static final int defaultMaxChunkSizeKb = 64 * 1024 ;
+	public static final int maxChunkSizeKb = 256 * 1024 ;
+	
+	private volatile XMLConfiguration config = null ;
+	final private String baseProperty ; 
+	
+	private int concurrency = defaultConcurrency ;
+	private int maxConcurrencyLimit = defaultMaxConcurrency ;
+	private boolean adaptiveConcurrency = true ;
+	private boolean syncManifestEnabled = true ;
+	private boolean quickCheckEnabled = true ;
+	private boolean deduplicationEnabled = true ;
+	private int minChunkSizeKb = defaultMinChunkSizeKb ;
+	private int maxChunkSizeLimitKb = defaultMaxChunkSizeKb ;
+	// large files sent through the media uploader (file regions) rather than the large file engine
+	private boolean mediaUploaderEnabled = false ;
+	
+	public UploadSettingsImpl (String baseProperty)
+	{
+		super () ;
+		this.baseProperty = baseProperty ;
+	}
+	
+	public synchronized void setConfig (XMLConfiguration config) 
+	{
+		this.config = config ;
+		if (this.config == null)
+		{
+			logger.info("Upload settings cannot be set because the config parameter is null");
+			return ;
+		}
+		concurrency = clamp (config.getInt(baseProperty + ".concurrency", defaultConcurrency), 1, maxConcurrency) ;
+		maxConcurrencyLimit = clamp (config.getInt(baseProperty + ".maxConcurrency", defaultMaxConcurrency), concurrency, maxConcurrency) ;
+		adaptiveConcurrency = config.getBoolean(baseProperty + ".adaptive", true) ;
+		syncManifestEnabled = config.getBoolean(baseProperty + ".manifest", true) ;
+		quickCheckEnabled = config.getBoolean(baseProperty + ".quickCheck", true) ;
+		deduplicationEnabled = config.getBoolean(baseProperty + ".dedup", true) ;
+		minChunkSizeKb = toChunkSizeUnit (clamp (config.getInt(baseProperty + ".minChunkSize", defaultMinChunkSizeKb), chunkSizeUnitKb, maxChunkSizeKb)) ;
+		maxChunkSizeLimitKb = toChunkSizeUnit (clamp (config.getInt(baseProperty + ".maxChunkSize", defaultMaxChunkSizeKb), minChunkSizeKb, maxChunkSizeKb)) ;
+		mediaUploaderEnabled = config.getBoolean(baseProperty + ".mediaUploader", false) ;
+	}
+	
+	private static int clamp (int value, int min, int max) {
+		return Math.max(min, Math.min(max, value)) ;
+	}
+	
+	private static int toChunkSizeUnit (int sizeKb) {
+		return (sizeKb / chunkSizeUnitKb) * chunkSizeUnitKb ;
+	}
+
+	@Override
+	public synchronized int getConcurrency() {
+		return concurrency ;
+	}
+
+	@Override
+	public synchronized int getMaxConcurrency() {
+		return maxConcurrencyLimit ;
+	}
+
+	@Override
+	public synchronized boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency ;
+	}
+
+	@Override
+	public synchronized boolean isSyncManifestEnabled() {
+		return syncManifestEnabled ;
+	}
+
+	@Override
+	public synchronized boolean isQuickCheckEnabled() {
+		return quickCheckEnabled ;
+	}
+
+	@Override
+	public synchronized boolean isDeduplicationEnabled() {
+		return deduplicationEnabled ;
+	}
+
+	@Override
+	public synchronized int getMinChunkSize() {
+		return minChunkSizeKb * 1024 ;
+	}
+
+	@Override
+	public synchronized int getMaxChunkSize() {
+		return maxChunkSizeLimitKb * 1024 ;
+	}
+
+	@Override
+	public synchronized boolean isMediaUploaderEnabled() {
+		return mediaUploaderEnabled ;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Process-wide holder of the OAuth access token.
+ * 
+ * <p>
+ * The Drive client and the large file engine share the same credential, which is refreshed 
+ * in the background a few minutes before it expires, so that the uploads neither wait for 
+ * a refresh nor run into a 401. At most one refresh is in flight: the callers that find 
+ * the token expired (or rejected) while another refresh goes on just wait for its result.
+ * </p>
+ */
+public enum AccessTokenManager {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(AccessTokenManager.class);
+	
+	// the token is refreshed this long before it expires
+	private final long refreshMarginSeconds = 300 ;
+	// below this, the token is refreshed before it is handed out
+	private final long minValiditySeconds = 60 ;
+	private final long retryDelaySeconds = 30 ;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("drive-token-refresh").setDaemon(true).build()) ;
+	
+	// guarded by this
+	private Credential credential = null ;
+	private ScheduledFuture<?> scheduledRefresh = null ;
+	
+	// held while refreshing
+	private final Object refreshLock = new Object () ;
+	
+	
+	/**
+	 * Sets the credential to share (if not already set) and schedules its refresh.
+	 */
+	public synchronized void manage (Credential credential) {
+		Preconditions.checkNotNull(credential) ;
+		if (this.credential == credential) {
+			return ;
+		}
+		this.credential = credential ;
+		scheduleRefresh () ;
+	}
+	
+	
+	private synchronized Credential getCredential () throws IOException {
+		if (credential == null) {
+			throw new IOException ("Not authenticated") ;
+		}
+		return credential ;
+	}
+	
+	
+	private synchronized void scheduleRefresh () {
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false) ;
+		}
+		if (credential == null) {
+			return ;
+		}
+		Long expiresIn = credential.getExpiresInSeconds() ;
+		long delay = (expiresIn == null || credential.getAccessToken() == null) ? (0) 
+				: (Math.max(0, expiresIn.longValue() - refreshMarginSeconds)) ;
+		scheduledRefresh = scheduler.schedule(new Runnable () {
+			@Override
+			public void run() {
+				try {
+					refresh (null, true) ;
+				} catch (Throwable e) {
+					logger.error("Error occurred while refreshing the access token", e);
+					synchronized (AccessTokenManager.this) {
+						scheduledRefresh = scheduler.schedule(this, retryDelaySeconds, TimeUnit.SECONDS) ;
+					}
+				}
+			}}, delay, TimeUnit.SECONDS) ;
+	}
+	
+	
+	/**
+	 * Refreshes the token, unless (not forced) it has already been refreshed since the 
+	 * stale token was handed out.
+	 * 
+	 * @param staleToken the token known to be expired or rejected
+	 */
+	private String refresh (String staleToken, boolean force) throws IOException {
+		Credential credential = getCredential () ;
+		synchronized (refreshLock) {
+			String current = credential.getAccessToken() ;
+			if (!force && current != null && !current.equals(staleToken)) {
+				// refreshed meanwhile
+				return current ;
+			}
+			logger.info("Updating access_token from Google");
+			if (!credential.refreshToken()) {
+				throw new IOException ("The access token could not be refreshed") ;
+			}
+			scheduleRefresh () ;
+			return credential.getAccessToken() ;
+		}
+	}
+	
+	
+	/**
+	 * @return a valid access token; it is only refreshed here if the background refresh 
+	 * did not happen in time
+	 */
+	public String getAccessToken () throws IOException {
+		Credential credential = getCredential () ;
+		String token = credential.getAccessToken() ;
+		Long expiresIn = credential.getExpiresInSeconds() ;
+		if (token == null || (expiresIn != null && expiresIn.longValue() <= minValiditySeconds)) {
+			token = refresh (token, false) ;
+		}
+		return token ;
+	}
+	
+	
+	/**
+	 * Called when the server rejected the given token (401).
+	 * 
+	 * @return the new token
+	 */
+	public String onRejected (String token) throws IOException {
+		return refresh (token, false) ;
+	}
+}
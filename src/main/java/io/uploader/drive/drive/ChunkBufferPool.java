@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Process-wide pool of direct buffers for the chunks of the large files.
+ * 
+ * <p>
+ * Both large-file engines borrow their chunk buffers here and give them back once done, 
+ * so that the buffers are recycled across chunks, files and tasks. The total size of the 
+ * buffers (borrowed or idle) is capped; when the cap is reached, the borrowers wait for 
+ * a buffer to be returned. Idle buffers that are too small for a request are dropped in 
+ * order to make room.
+ * </p>
+ */
+public enum ChunkBufferPool {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(ChunkBufferPool.class);
+	
+	private final long capacity = Runtime.getRuntime().maxMemory() / 4 ;
+	
+	// guarded by this
+	private final List<ByteBuffer> idle = new ArrayList<ByteBuffer> () ;
+	private long allocated = 0 ;
+	private long borrowed = 0 ;
+	
+	
+	/**
+	 * Borrows a buffer of at least the given size, waiting if the cap has been reached. 
+	 * The buffer is returned cleared, with its limit set to the requested size.
+	 */
+	public synchronized ByteBuffer acquire (int size) throws InterruptedIOException {
+		ByteBuffer buffer = tryAcquire (size) ;
+		while (buffer == null) {
+			try {
+				wait () ;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException () ;
+			}
+			buffer = tryAcquire (size) ;
+		}
+		return buffer ;
+	}
+	
+	
+	/**
+	 * Borrows a buffer of at least the given size, or returns {@code null} if the cap has 
+	 * been reached.
+	 */
+	public synchronized ByteBuffer tryAcquire (int size) {
+		Preconditions.checkArgument(size >= 0) ;
+		ByteBuffer buffer = null ;
+		for (ByteBuffer candidate : idle) {
+			if (candidate.capacity() >= size && (buffer == null || candidate.capacity() < buffer.capacity())) {
+				buffer = candidate ;
+			}
+		}
+		if (buffer != null) {
+			idle.remove(buffer) ;
+		} else {
+			Iterator<ByteBuffer> iter = idle.iterator() ;
+			while (allocated + size > capacity && iter.hasNext()) {
+				allocated -= iter.next().capacity() ;
+				iter.remove();
+			}
+			// a request larger than the cap is granted when nothing else is borrowed
+			if (allocated + size > capacity && borrowed > 0) {
+				return null ;
+			}
+			logger.debug("Allocate a chunk buffer of " + size + " bytes");
+			buffer = ByteBuffer.allocateDirect(size) ;
+			allocated += size ;
+		}
+		borrowed += buffer.capacity() ;
+		buffer.clear() ;
+		buffer.limit(size) ;
+		return buffer ;
+	}
+	
+	
+	/**
+	 * Gives back a buffer obtained from {@link #acquire(int)} or {@link #tryAcquire(int)}.
+	 */
+	public synchronized void release (ByteBuffer buffer) {
+		if (buffer == null) {
+			return ;
+		}
+		borrowed -= buffer.capacity() ;
+		idle.add(buffer) ;
+		notifyAll () ;
+	}
+}
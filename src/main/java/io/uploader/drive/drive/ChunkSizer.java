@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import io.uploader.drive.config.upload.HasUploadSettings;
+
+/**
+ * Chooses the size of the chunks of a resumable upload from the measured throughput and 
+ * failure rate.
+ * 
+ * <p>
+ * Each chunk costs a round trip, hence the chunks should be large enough for that cost to 
+ * be negligible on fast links; but a failed chunk has to be sent again, hence the chunks 
+ * should remain small on flaky links. The size aims at a fixed transfer time per chunk at 
+ * the measured throughput (an exponential moving average), shortened as the failure rate 
+ * goes up, and it is halved at once on failure. It at most doubles from a chunk to the 
+ * next, stays within the floor and ceiling of the settings, and is always a multiple of 
+ * 512 KB (as required by the protocol; the last chunk may be smaller).
+ * </p>
+ * 
+ * <p>
+ * An instance covers a single upload and is not thread-safe.
+ * </p>
+ */
+public class ChunkSizer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkSizer.class);
+	
+	public static final int unit = 512 * 1024 ;
+	public static final int defaultInitialChunkSize = 10 * 1024 * 1024 ;
+	
+	private static final double targetChunkSeconds = 8.0 ;
+	private static final double smoothingFactor = 0.3 ;
+	
+	private final int minChunkSize ;
+	private final int maxChunkSize ;
+	private int chunkSize ;
+	private double throughput = -1.0 ;
+	private double failureRate = 0.0 ;
+	
+	
+	public ChunkSizer (int minChunkSize, int maxChunkSize, int initialChunkSize) {
+		super () ;
+		Preconditions.checkArgument(minChunkSize >= unit && maxChunkSize >= minChunkSize) ;
+		this.minChunkSize = roundDown (minChunkSize) ;
+		this.maxChunkSize = roundDown (maxChunkSize) ;
+		this.chunkSize = clamp (roundDown (initialChunkSize)) ;
+	}
+	
+	
+	public ChunkSizer (HasUploadSettings settings) {
+		this (settings.getMinChunkSize(), settings.getMaxChunkSize(), defaultInitialChunkSize) ;
+	}
+	
+	
+	private static int roundDown (long size) {
+		return (int) Math.max(unit, (size / unit) * unit) ;
+	}
+	
+	
+	private int clamp (int size) {
+		return Math.max(minChunkSize, Math.min(maxChunkSize, size)) ;
+	}
+	
+	
+	/**
+	 * @return the size of the next chunk
+	 */
+	public int getChunkSize () {
+		return chunkSize ;
+	}
+	
+	
+	/**
+	 * Notifies that a chunk has been sent successfully.
+	 * 
+	 * @param bytes the number of bytes acknowledged by the server
+	 * @param nanos the time it took to send the chunk
+	 */
+	public void onChunkSent (long bytes, long nanos) {
+		failureRate = (1.0 - smoothingFactor) * failureRate ;
+		// short chunks (e.g., the last one) do not tell much about the throughput
+		if (bytes < unit || nanos <= 0) {
+			return ;
+		}
+		double rate = bytes / (nanos / (double) TimeUnit.SECONDS.toNanos(1)) ;
+		throughput = (throughput < 0) ? (rate) : (smoothingFactor * rate + (1.0 - smoothingFactor) * throughput) ;
+		long target = (long) (throughput * targetChunkSeconds * (1.0 - failureRate)) ;
+		int size = clamp (roundDown (Math.min(target, 2L * chunkSize))) ;
+		if (size != chunkSize) {
+			logger.info("Chunk size: " + (chunkSize / 1024) + " KB -> " + (size / 1024) + " KB");
+			chunkSize = size ;
+		}
+	}
+	
+	
+	/**
+	 * Notifies that a chunk could not be sent (error, server failure or throttling).
+	 */
+	public void onChunkFailed () {
+		failureRate = smoothingFactor + (1.0 - smoothingFactor) * failureRate ;
+		int size = clamp (roundDown (chunkSize / 2)) ;
+		if (size != chunkSize) {
+			logger.info("Chunk size: " + (chunkSize / 1024) + " KB -> " + (size / 1024) + " KB (failure)");
+			chunkSize = size ;
+		}
+	}
+}
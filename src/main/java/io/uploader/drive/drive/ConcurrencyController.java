@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Process-wide AIMD (additive increase, multiplicative decrease) control of the number 
+ * of uploads and metadata operations in flight.
+ * 
+ * <p>
+ * Every operation takes a permit before starting and gives it back once done. Periodically, 
+ * if all the permits are in use and the throughput went up (or at least did not drop) since 
+ * the previous adjustment, one more permit is granted; an increase which did not bring any 
+ * throughput gain is reverted. On throttling (403 rate limit, 429 or 5xx responses), the 
+ * number of permits is halved at once, at most once per adjustment period. All the tasks 
+ * share the same controller, since they share the same quota and the same link.
+ * </p>
+ */
+public enum ConcurrencyController {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(ConcurrencyController.class);
+	
+	private static final int minLimit = 1 ;
+	private static final long adjustmentPeriodMillis = 2000 ;
+	private static final double minThroughputGain = 1.05 ;
+	private static final double maxThroughputLoss = 0.95 ;
+	
+	@SuppressWarnings("serial")
+	private static class AdjustableSemaphore extends Semaphore {
+
+		AdjustableSemaphore(int permits) {
+			super(permits);
+		}
+		
+		void reduce (int reduction) {
+			reducePermits (reduction) ;
+		}
+	}
+	
+	private final AdjustableSemaphore permits = new AdjustableSemaphore (0) ;
+	private final AtomicInteger inFlight = new AtomicInteger () ;
+	private final AtomicLong sentBytes = new AtomicLong () ;
+	// permits held by each thread (acquired and released on the same thread)
+	private final ThreadLocal<int[]> held = new ThreadLocal<int[]> () {
+		@Override
+		protected int[] initialValue() {
+			return new int[1] ;
+		}
+	} ;
+	
+	// guarded by this
+	private boolean configured = false ;
+	private boolean adaptive = true ;
+	private int limit = 0 ;
+	private int maxLimit = 0 ;
+	private boolean lastStepWasIncrease = false ;
+	private double lastThroughput = 0.0 ;
+	private long lastSampleTime = 0 ;
+	private long lastSampleBytes = 0 ;
+	private long lastDecreaseTime = 0 ;
+	private ScheduledExecutorService adjuster = null ;
+	
+	
+	/**
+	 * Sets the bounds of the controller. The initial limit only applies the first time.
+	 */
+	public synchronized void configure (int initialLimit, int maxLimit, boolean adaptive) {
+		this.adaptive = adaptive ;
+		this.maxLimit = Math.max(minLimit, maxLimit) ;
+		int target = (configured && adaptive) ? (limit) : (initialLimit) ;
+		setLimit (Math.max(minLimit, Math.min(this.maxLimit, target))) ;
+		if (!configured) {
+			configured = true ;
+			lastSampleTime = System.nanoTime() ;
+			adjuster = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("drive-concurrency-%d").setDaemon(true).build()) ;
+			adjuster.scheduleAtFixedRate(new Runnable () {
+
+				@Override
+				public void run() {
+					adjust () ;
+				}}, adjustmentPeriodMillis, adjustmentPeriodMillis, TimeUnit.MILLISECONDS) ;
+		}
+	}
+	
+	
+	private void setLimit (int newLimit) {
+		// must hold the lock
+		if (newLimit > limit) {
+			permits.release(newLimit - limit);
+		} else if (newLimit < limit) {
+			permits.reduce(limit - newLimit);
+		}
+		if (newLimit != limit) {
+			logger.info("Concurrency limit: " + newLimit);
+		}
+		limit = newLimit ;
+	}
+	
+	
+	public synchronized int getLimit () {
+		return limit ;
+	}
+	
+	
+	/**
+	 * Waits for a permit to start an operation.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void acquire () throws InterruptedException {
+		permits.acquire();
+		inFlight.incrementAndGet() ;
+		++held.get()[0] ;
+	}
+	
+	
+	public void release () {
+		int[] count = held.get() ;
+		count[0] = Math.max(0, count[0] - 1) ;
+		inFlight.decrementAndGet() ;
+		permits.release();
+	}
+	
+	
+	/**
+	 * Gives back the permits of the calling thread while it waits for an operation which 
+	 * takes a permit of its own (e.g., a batch of metadata requests); otherwise the 
+	 * waiting threads could hold all the permits.
+	 * 
+	 * @return the number of permits to take back with {@link #reacquire(int)}
+	 */
+	public int releaseHeld () {
+		int count = held.get()[0] ;
+		for (int i = 0 ; i < count ; ++i) {
+			release () ;
+		}
+		return count ;
+	}
+	
+	
+	/**
+	 * Takes back the permits given back by {@link #releaseHeld()}.
+	 */
+	public void reacquire (int count) {
+		for (int i = 0 ; i < count ; ++i) {
+			permits.acquireUninterruptibly();
+			inFlight.incrementAndGet() ;
+			++held.get()[0] ;
+		}
+	}
+	
+	
+	/**
+	 * Records bytes that have just been sent.
+	 */
+	public void addSent (long bytes) {
+		sentBytes.addAndGet(bytes) ;
+	}
+	
+	
+	public static boolean isThrottling (int statusCode, String reason) {
+		if (statusCode == 429 || (statusCode >= 500 && statusCode < 600)) {
+			return true ;
+		}
+		return statusCode == 403 && ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) ;
+	}
+	
+	
+	/**
+	 * Takes into account a response from the server (only the throttling responses matter).
+	 */
+	public void onResponse (int statusCode, String reason) {
+		if (isThrottling (statusCode, reason)) {
+			onThrottled (statusCode) ;
+		}
+	}
+	
+	
+	/**
+	 * Takes into account an error thrown by a request (only the throttling responses matter).
+	 */
+	public void onError (Throwable e) {
+		if (e instanceof GoogleJsonResponseException) {
+			GoogleJsonResponseException jsonException = (GoogleJsonResponseException) e ;
+			String reason = null ;
+			if (jsonException.getDetails() != null) {
+				List<ErrorInfo> errors = jsonException.getDetails().getErrors() ;
+				if (errors != null && !errors.isEmpty()) {
+					reason = errors.get(0).getReason() ;
+				}
+			}
+			onResponse (jsonException.getStatusCode(), reason) ;
+		} else if (e instanceof HttpResponseException) {
+			onResponse (((HttpResponseException) e).getStatusCode(), null) ;
+		}
+	}
+	
+	
+	private synchronized void onThrottled (int statusCode) {
+		if (!adaptive) {
+			return ;
+		}
+		long now = System.nanoTime() ;
+		if (lastDecreaseTime != 0 && now - lastDecreaseTime < TimeUnit.MILLISECONDS.toNanos(adjustmentPeriodMillis)) {
+			return ;
+		}
+		logger.info("Throttled by the server (" + statusCode + "), back off");
+		lastDecreaseTime = now ;
+		lastStepWasIncrease = false ;
+		setLimit (Math.max(minLimit, limit / 2)) ;
+	}
+	
+	
+	private synchronized void adjust () {
+		long now = System.nanoTime() ;
+		long bytes = sentBytes.get() ;
+		double elapsed = ((double)(now - lastSampleTime)) / TimeUnit.SECONDS.toNanos(1) ;
+		if (elapsed <= 0) {
+			return ;
+		}
+		double throughput = (bytes - lastSampleBytes) / elapsed ;
+		lastSampleTime = now ;
+		lastSampleBytes = bytes ;
+		
+		if (!adaptive || (lastDecreaseTime != 0 && now - lastDecreaseTime < TimeUnit.MILLISECONDS.toNanos(adjustmentPeriodMillis))) {
+			// wait until the decrease has been measured
+			lastThroughput = throughput ;
+			return ;
+		}
+		if (lastStepWasIncrease && throughput < lastThroughput * minThroughputGain) {
+			// the additional operation did not help
+			lastStepWasIncrease = false ;
+			setLimit (Math.max(minLimit, limit - 1)) ;
+		} else if (inFlight.get() >= limit && limit < maxLimit && throughput >= lastThroughput * maxThroughputLoss) {
+			lastStepWasIncrease = true ;
+			setLimit (limit + 1) ;
+		} else {
+			lastStepWasIncrease = false ;
+		}
+		lastThroughput = throughput ;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Index of the remote files known to an upload task (listed under the destination tree, 
+ * or uploaded by the task), by size and MD5 checksum.
+ * 
+ * <p>
+ * A local file whose content is already in the drive can then be copied on the server 
+ * side rather than uploaded again. The size is looked up first, so that only the local 
+ * files having the same size as a known remote file need to be hashed.
+ * </p>
+ */
+class DedupIndex {
+
+	private final ConcurrentMap<Long, ConcurrentMap<String, File>> filesBySize = new ConcurrentHashMap<Long, ConcurrentMap<String, File>> () ;
+	
+	
+	private static boolean isIndexable (File file) {
+		return file != null 
+				&& file.getId() != null
+				&& file.getFileSize() != null 
+				&& file.getMd5Checksum() != null ;
+	}
+	
+	
+	void add (File file) {
+		if (!isIndexable (file)) {
+			return ;
+		}
+		ConcurrentMap<String, File> files = filesBySize.get(file.getFileSize()) ;
+		if (files == null) {
+			ConcurrentMap<String, File> newFiles = new ConcurrentHashMap<String, File> () ;
+			files = filesBySize.putIfAbsent(file.getFileSize(), newFiles) ;
+			if (files == null) {
+				files = newFiles ;
+			}
+		}
+		files.putIfAbsent(file.getMd5Checksum(), file) ;
+	}
+	
+	
+	void remove (File file) {
+		if (!isIndexable (file)) {
+			return ;
+		}
+		Map<String, File> files = filesBySize.get(file.getFileSize()) ;
+		if (files == null) {
+			return ;
+		}
+		File indexed = files.get(file.getMd5Checksum()) ;
+		if (indexed != null && indexed.getId().equals(file.getId())) {
+			files.remove(file.getMd5Checksum(), indexed) ;
+		}
+	}
+	
+	
+	/**
+	 * Tells whether a local file of the given size may have a copy in the drive.
+	 */
+	boolean hasCandidates (long size) {
+		Map<String, File> files = filesBySize.get(size) ;
+		return files != null && !files.isEmpty() ;
+	}
+	
+	
+	/**
+	 * @return a remote file having the given size and checksum, or {@code null} if none.
+	 */
+	File find (long size, String md5) {
+		Map<String, File> files = filesBySize.get(size) ;
+		return (files == null || md5 == null) ? (null) : (files.get(md5)) ;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Coalesces independent metadata requests into multipart batch requests.
+ * 
+ * <p>
+ * Requests submitted from any thread are queued, and a single flusher thread sends them 
+ * as one {@link BatchRequest} as soon as either the batch is full ({@link #maxBatchSize} 
+ * requests, the limit of the Drive API) or no other request came in during a short 
+ * linger period. A lone request is sent as is. Each request gets its own future, and a 
+ * request rejected within a batch fails with an {@link HttpResponseException} carrying 
+ * the status code of its part, so that the usual retry policy applies.
+ * </p>
+ * 
+ * <p>
+ * When given a {@link ConcurrencyController}, each batch (or lone request) takes one 
+ * permit while it is sent, whatever the number of requests it carries; the callers 
+ * waiting for a response give their own permits back in the meantime.
+ * </p>
+ */
+class DriveBatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(DriveBatcher.class);
+	
+	static final int maxBatchSize = 100 ;
+	private static final long lingerMillis = 10 ;
+	
+	private static class PendingRequest<T> {
+		
+		private final DriveRequest<T> request ;
+		private final SettableFuture<T> future = SettableFuture.create() ;
+		
+		PendingRequest (DriveRequest<T> request) {
+			super () ;
+			this.request = request ;
+		}
+		
+		void queue (BatchRequest batch) throws IOException {
+			request.queue(batch, new JsonBatchCallback<T> () {
+
+				@Override
+				public void onSuccess(T result, HttpHeaders responseHeaders) {
+					future.set(result) ;
+				}
+
+				@Override
+				public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+					String reason = (error.getErrors() == null || error.getErrors().isEmpty()) ? (null) : (error.getErrors().get(0).getReason()) ;
+					ConcurrencyController.INSTANCE.onResponse(error.getCode(), reason) ;
+					future.setException(new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders)
+						.setMessage(error.getCode() + " " + error.getMessage()).build()) ;
+				}}) ;
+		}
+		
+		void execute () {
+			try {
+				future.set(request.execute()) ;
+			} catch (Throwable e) {
+				future.setException(e) ;
+			}
+		}
+		
+		void fail (Throwable e) {
+			future.setException(e) ;
+		}
+	}
+	
+	private final Drive client ;
+	private final ConcurrencyController controller ;
+	private final BlockingQueue<PendingRequest<?>> queue = new LinkedBlockingQueue<PendingRequest<?>> () ;
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("drive-batch-%d").setDaemon(true).build()) ;
+	private volatile boolean shutdown = false ;
+	
+	DriveBatcher (Drive client) {
+		this (client, null) ;
+	}
+	
+	
+	/**
+	 * @param controller the controller of the operations in flight, or {@code null} to send 
+	 * the batches regardless
+	 */
+	DriveBatcher (Drive client, ConcurrencyController controller) {
+		super () ;
+		this.client = Preconditions.checkNotNull(client) ;
+		this.controller = controller ;
+		flusher.execute(new Runnable () {
+
+			@Override
+			public void run() {
+				flushLoop () ;
+			}}) ;
+	}
+	
+	
+	/**
+	 * Queues a request to be sent with the next batch.
+	 */
+	<T> ListenableFuture<T> submit (DriveRequest<T> request) {
+		Preconditions.checkNotNull(request) ;
+		if (shutdown) {
+			return Futures.immediateFailedFuture(new IllegalStateException ("The batcher has been shut down")) ;
+		}
+		PendingRequest<T> pending = new PendingRequest<T> (request) ;
+		queue.add(pending) ;
+		return pending.future ;
+	}
+	
+	
+	/**
+	 * Queues a request to be sent with the next batch and waits for its response.
+	 */
+	<T> T execute (DriveRequest<T> request) throws IOException {
+		return get (submit (request)) ;
+	}
+	
+	
+	/**
+	 * Waits for the response of a batched request, rethrowing its failure as is.
+	 */
+	static <T> T get (ListenableFuture<T> future) throws IOException {
+		// the batch takes a permit of its own
+		int released = ConcurrencyController.INSTANCE.releaseHeld() ;
+		try {
+			return future.get() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException ("Interrupted while waiting for a batched request", e) ;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() ;
+			if (cause instanceof IOException) {
+				throw (IOException) cause ;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause ;
+			}
+			throw new IOException (cause) ;
+		} finally {
+			ConcurrencyController.INSTANCE.reacquire(released);
+		}
+	}
+	
+	
+	private void flushLoop () {
+		List<PendingRequest<?>> pending = new ArrayList<PendingRequest<?>> (maxBatchSize) ;
+		try {
+			while (true) {
+				pending.add(queue.take()) ;
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis) ;
+				while (pending.size() < maxBatchSize) {
+					PendingRequest<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) ;
+					if (next == null) {
+						break ;
+					}
+					pending.add(next) ;
+				}
+				if (controller != null) {
+					controller.acquire();
+				}
+				try {
+					flush (pending) ;
+				} finally {
+					if (controller != null) {
+						controller.release();
+					}
+				}
+				pending.clear();
+			}
+		} catch (InterruptedException e) {
+			logger.info("Batcher interrupted");
+		} finally {
+			queue.drainTo(pending) ;
+			for (PendingRequest<?> request : pending) {
+				request.fail(new IOException ("The batcher has been shut down")) ;
+			}
+		}
+	}
+	
+	
+	private void flush (List<PendingRequest<?>> pending) {
+		if (pending.size() == 1) {
+			pending.get(0).execute();
+			return ;
+		}
+		logger.info("Send a batch of " + pending.size() + " requests");
+		try {
+			BatchRequest batch = client.batch() ;
+			for (PendingRequest<?> request : pending) {
+				request.queue(batch);
+			}
+			batch.execute();
+		} catch (Throwable e) {
+			logger.error("Error occurred while sending a batch of " + pending.size() + " requests", e);
+			ConcurrencyController.INSTANCE.onError(e) ;
+			for (PendingRequest<?> request : pending) {
+				request.fail(e) ;
+			}
+		}
+		// no-op for the requests that got their response
+		for (PendingRequest<?> request : pending) {
+			request.fail(new IOException ("No response received for the batched request")) ;
+		}
+	}
+	
+	
+	void shutdown () {
+		shutdown = true ;
+		flusher.shutdownNow() ;
+	}
+}
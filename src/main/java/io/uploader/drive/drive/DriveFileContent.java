@@ -36,7 +36,13 @@ import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * Concrete implementation of {@link AbstractInputStreamContent} that generates repeatable input
@@ -55,6 +61,11 @@ import java.io.InputStream;
  * </pre>
  *
  * <p>
+ * The MD5 checksum of the content is computed on the fly from the bytes read for the 
+ * upload (see {@link #getMd5()}), so that the file does not need to be read once more.
+ * </p>
+ *
+ * <p>
  * Implementation is not thread-safe.
  * </p>
  *
@@ -65,6 +76,63 @@ public final class DriveFileContent extends AbstractInputStreamContent {
 
   private final File file;
   private final InputStreamProgressFilter.StreamProgressCallback progressCallback ;
+  private Md5InputStream lastStream = null ;
+
+  /**
+   * Computes the MD5 checksum of the bytes read, unless some bytes are skipped.
+   */
+  private static class Md5InputStream extends FilterInputStream {
+
+    private final MessageDigest digest = DigestUtils.getMd5Digest() ;
+    private long count = 0 ;
+    private boolean valid = true ;
+    private String md5 = null ;
+
+    Md5InputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        digest.update((byte) b);
+        ++count ;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int r = super.read(b, off, len);
+      if (r > 0) {
+        digest.update(b, off, r);
+        count += r ;
+      }
+      return r;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      valid = false ;
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    synchronized String getMd5 (long length) {
+      if (!valid || count != length) {
+        return null ;
+      }
+      if (md5 == null) {
+        md5 = Hex.encodeHexString(digest.digest()) ;
+      }
+      return md5 ;
+    }
+  }
 
   /**
    * @param type Content type or {@code null} for none
@@ -87,11 +155,28 @@ public final class DriveFileContent extends AbstractInputStreamContent {
 
   @Override
   public InputStream getInputStream() throws FileNotFoundException {
-	  if (progressCallback == null) {
-		  return new FileInputStream(file) ;
-	  } else {
-		  return FileUtils.getInputStreamWithProgressFilter(progressCallback, file.length(), new FileInputStream(file)) ;
-	  }
+    // a new stream is requested on retry, the checksum starts over
+    lastStream = new Md5InputStream(new FileInputStream(file)) ;
+    if (progressCallback == null) {
+      return lastStream ;
+    } else {
+      return FileUtils.getInputStreamWithProgressFilter(progressCallback, file.length(), lastStream) ;
+    }
+  }
+
+  /**
+   * Returns the MD5 checksum of the content sent by the last attempt, or {@code null} if 
+   * the content has not been entirely read in one go (or has been sent as regions of the file).
+   */
+  public String getMd5() {
+    return (lastStream == null) ? (null) : (lastStream.getMd5(file.length()));
+  }
+
+  /**
+   * Returns the callback notified of the progress of the content streams, or {@code null}.
+   */
+  public InputStreamProgressFilter.StreamProgressCallback getProgressCallback() {
+    return progressCallback;
   }
 
   /**
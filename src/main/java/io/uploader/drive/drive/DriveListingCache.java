@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import io.uploader.drive.drive.DriveUtils.HasId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Folder-scoped cache of the remote listings.
+ * 
+ * <p>
+ * The children of a given Drive folder are fetched once (all the pages of the listing), 
+ * and indexed by title, so that the existence of a file or a directory can be resolved 
+ * locally instead of issuing one query per item. Listings can be prefetched in the 
+ * background. The cache is meant to live as long as a single upload task, during which 
+ * it is the only writer of the folders it indexes.
+ * </p>
+ */
+class DriveListingCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(DriveListingCache.class);
+	
+	private static final String rootId = "root" ;
+	
+	private static class Listing {
+		
+		private final Map<String, List<File>> titleIndex = new HashMap<String, List<File>> () ;
+		
+		Listing (List<File> children) {
+			super () ;
+			for (File child : children) {
+				add (child) ;
+			}
+		}
+		
+		synchronized List<File> get (String title, boolean directoryOnly) throws IOException {
+			List<File> files = titleIndex.get(title) ;
+			if (files == null) {
+				return Collections.emptyList() ;
+			}
+			List<File> ret = new ArrayList<File> (files.size()) ;
+			for (File file : files) {
+				if (!directoryOnly || DriveUtils.isDirectory(file)) {
+					ret.add(file) ;
+				}
+			}
+			return ret ;
+		}
+		
+		synchronized void add (File file) {
+			List<File> files = titleIndex.get(file.getTitle()) ;
+			if (files == null) {
+				files = new ArrayList<File> (1) ;
+				titleIndex.put(file.getTitle(), files) ;
+			}
+			for (File f : files) {
+				if (f.getId().equals(file.getId())) {
+					return ;
+				}
+			}
+			files.add(file) ;
+		}
+		
+		synchronized boolean contains (String title, String id) {
+			List<File> files = titleIndex.get(title) ;
+			if (files == null) {
+				return false ;
+			}
+			for (File f : files) {
+				if (f.getId().equals(id)) {
+					return true ;
+				}
+			}
+			return false ;
+		}
+		
+		synchronized void remove (File file) {
+			List<File> files = titleIndex.get(file.getTitle()) ;
+			if (files == null) {
+				return ;
+			}
+			for (int i = 0 ; i < files.size() ; ++i) {
+				if (files.get(i).getId().equals(file.getId())) {
+					files.remove(i) ;
+					break ;
+				}
+			}
+		}
+	}
+	
+	private final Drive client ;
+	private final DedupIndex dedupIndex ;
+	private final ConcurrentMap<String, Future<Listing>> listings = new ConcurrentHashMap<String, Future<Listing>> () ;
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("drive-listing-%d").setDaemon(true).build()) ;
+	
+	DriveListingCache (Drive client) {
+		this (client, null) ;
+	}
+	
+	
+	DriveListingCache (Drive client, DedupIndex dedupIndex) {
+		super () ;
+		this.client = Preconditions.checkNotNull(client) ;
+		this.dedupIndex = dedupIndex ;
+	}
+	
+	
+	/**
+	 * @return the index of the files listed or added, or {@code null} if there is none.
+	 */
+	DedupIndex getDedupIndex () {
+		return dedupIndex ;
+	}
+	
+	
+	private static String getKey (File parent) {
+		return (parent == null) ? (rootId) : (parent.getId()) ;
+	}
+	
+	
+	private FutureTask<Listing> newListingTask (final File parent) {
+		return new FutureTask<Listing> (new Callable<Listing> () {
+
+			@Override
+			public Listing call() throws Exception {
+				HasId parentId = (parent == null) ? (null) : (DriveUtils.newId(parent)) ;
+				List<File> children = DriveUtils.listChildren(client, parentId) ;
+				if (dedupIndex != null) {
+					for (File child : children) {
+						dedupIndex.add(child) ;
+					}
+				}
+				return new Listing (children) ;
+			}}) ;
+	}
+	
+	
+	private Future<Listing> getOrSchedule (File parent, boolean async) {
+		String key = getKey (parent) ;
+		Future<Listing> listing = listings.get(key) ;
+		if (listing != null) {
+			return listing ;
+		}
+		FutureTask<Listing> task = newListingTask (parent) ;
+		listing = listings.putIfAbsent(key, task) ;
+		if (listing != null) {
+			return listing ;
+		}
+		if (async) {
+			prefetcher.execute(task);
+		} else {
+			task.run();
+		}
+		return task ;
+	}
+	
+	
+	private Listing getListing (File parent) throws IOException {
+		Future<Listing> future = getOrSchedule (parent, false) ;
+		if (future instanceof FutureTask) {
+			// a prefetch that has not started yet is run by the caller (no-op if already started)
+			((FutureTask<Listing>) future).run();
+		}
+		try {
+			return future.get() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException ("Interrupted while listing the folder " + getKey (parent), e) ;
+		} catch (ExecutionException e) {
+			// forget the failed listing so that the next attempt fetches it again
+			listings.remove(getKey (parent), future) ;
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause() ;
+			}
+			throw new IOException (e.getCause()) ;
+		}
+	}
+	
+	
+	/**
+	 * Fetches the listing of the given folder in the background, if not already done.
+	 */
+	void prefetch (File parent) {
+		getOrSchedule (parent, true) ;
+	}
+	
+	
+	/**
+	 * Registers a folder that has just been created, and which is therefore known to be empty.
+	 */
+	void addEmptyDirectory (File directory) {
+		Preconditions.checkNotNull(directory) ;
+		FutureTask<Listing> empty = new FutureTask<Listing> (new Callable<Listing> () {
+
+			@Override
+			public Listing call() {
+				return new Listing (Collections.<File>emptyList()) ;
+			}}) ;
+		empty.run();
+		listings.putIfAbsent(getKey (directory), empty) ;
+	}
+	
+	
+	List<File> findFiles (File parent, String title) throws IOException {
+		return getListing (parent).get(title, false) ;
+	}
+	
+	
+	List<File> findDirectories (File parent, String title) throws IOException {
+		return getListing (parent).get(title, true) ;
+	}
+	
+	
+	/**
+	 * Queries the server for the files with the given title under the given folder, and 
+	 * records them in the listing. Unlike the listing, the result includes a file whose 
+	 * insertion succeeded on the server although its response was lost.
+	 */
+	List<File> refresh (File parent, String title, boolean directoryOnly) throws IOException {
+		HasId parentId = (parent == null) ? (null) : (DriveUtils.newId(parent)) ;
+		List<File> files = (directoryOnly) 
+				? (DriveUtils.findDirectoriesWithTitle(client, title, parentId, (Integer)null).getItems()) 
+				: (DriveUtils.findFilesWithTitleAndMineType(client, title, parentId, null, null).getItems()) ;
+		if (files == null) {
+			return Collections.emptyList() ;
+		}
+		for (File file : files) {
+			add (parent, file) ;
+		}
+		return files ;
+	}
+	
+	
+	/**
+	 * Tells whether the listing of the given folder is already available and does not contain 
+	 * the given file. This method never issues any request.
+	 */
+	boolean isKnownMissing (File parent, String title, String id) {
+		Future<Listing> future = listings.get(getKey (parent)) ;
+		if (future == null || !future.isDone()) {
+			return false ;
+		}
+		try {
+			return !future.get().contains(title, id) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false ;
+		} catch (ExecutionException e) {
+			return false ;
+		}
+	}
+	
+	
+	/**
+	 * Records a file that has been added under the given folder.
+	 */
+	void add (File parent, File file) {
+		if (dedupIndex != null) {
+			dedupIndex.add(file) ;
+		}
+		Future<Listing> future = listings.get(getKey (parent)) ;
+		if (future == null || file == null) {
+			return ;
+		}
+		try {
+			future.get().add(file) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.info("The listing of the folder " + getKey (parent) + " is not available");
+		}
+	}
+	
+	
+	/**
+	 * Records a file that has been removed from the given folder.
+	 */
+	void remove (File parent, File file) {
+		if (dedupIndex != null) {
+			dedupIndex.remove(file) ;
+		}
+		Future<Listing> future = listings.get(getKey (parent)) ;
+		if (future == null || file == null) {
+			return ;
+		}
+		try {
+			future.get().remove(file) ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.info("The listing of the folder " + getKey (parent) + " is not available");
+		}
+	}
+	
+	
+	void shutdown () {
+		prefetcher.shutdownNow() ;
+	}
+}
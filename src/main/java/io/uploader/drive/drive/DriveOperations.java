@@ -14,30 +14,44 @@
 
 package io.uploader.drive.drive;
 
+import io.uploader.drive.config.Configuration;
+import io.uploader.drive.config.HasConfiguration;
+import io.uploader.drive.config.upload.HasUploadSettings;
 import io.uploader.drive.drive.DriveUtils.HasDescription;
 import io.uploader.drive.drive.DriveUtils.HasId;
 import io.uploader.drive.drive.DriveUtils.HasMimeType;
-import io.uploader.drive.util.FileUtils.FileFinderOption;
+import io.uploader.drive.drive.largefile.HttpClientUtils;
 import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class DriveOperations {
 	private static final Logger logger = LoggerFactory.getLogger(DriveOperations.class);
@@ -48,6 +62,10 @@ public class DriveOperations {
 		public abstract void setStatus (String str) ;
 		public abstract void setTotalProgress (double p) ;
 		public abstract void setCurrentProgress (double p) ;
+		/** @param bytesPerSecond the average throughput, or a negative value if unknown */
+		public abstract void setThroughput (double bytesPerSecond) ;
+		/** @param seconds the estimated remaining time, or a negative value if unknown */
+		public abstract void setEstimatedTimeRemaining (long seconds) ;
 	}
 	
 	public interface StopRequester {
@@ -84,9 +102,10 @@ public class DriveOperations {
 				}} ;
 		}
 		
-		private OperationCompletionStatus status = OperationCompletionStatus.UNKNOWN ;
-		private final Map<Path, Throwable> pathErrorMap = new HashMap<Path, Throwable> () ;
-		private final Map<Path, HasWarning> pathWarningMap = new HashMap<Path, HasWarning> () ;
+		// the result is filled in concurrently by the upload workers
+		private volatile OperationCompletionStatus status = OperationCompletionStatus.UNKNOWN ;
+		private final Map<Path, Throwable> pathErrorMap = new ConcurrentHashMap<Path, Throwable> () ;
+		private final Map<Path, HasWarning> pathWarningMap = new ConcurrentHashMap<Path, HasWarning> () ;
 		
 		public OperationCompletionStatus getStatus() {
 			return status;
@@ -143,6 +162,7 @@ public class DriveOperations {
 	
 	private static void dealWithException (Throwable e, AtomicInteger counter) throws Throwable
 	{		
+		ConcurrencyController.INSTANCE.onError(e) ;
 		if (isRetryable (e))
 		{
 			if (counter.getAndIncrement() >= maxNumberOfRetry) {
@@ -156,81 +176,280 @@ public class DriveOperations {
 	
 	
 	private static File createDirectoryIfNotExist (Drive client, final File parent, String title) throws Throwable {
+		return createDirectoryIfNotExist (client, null, parent, title, false) ;
+	}
+	
+	
+	/**
+	 * @param refresh whether the cached listing may be stale (e.g., after a failed insertion), 
+	 * in which case the server is queried
+	 */
+	private static File createDirectoryIfNotExist (Drive client, DriveListingCache listingCache, final File parent, String title, boolean refresh) throws Throwable {
 		File driveDirectory = null ;
 		AtomicInteger tryCounter = new AtomicInteger () ;
 		while (true) {
 			try {
-				FileList dirs = DriveUtils.findDirectoriesWithTitle(client, title, DriveUtils.newId(parent), (Integer)null) ;
-				if (dirs.getItems() == null || dirs.getItems().isEmpty()) {
+				List<File> dirs = null ;
+				if (listingCache != null) {
+					dirs = (refresh) ? (listingCache.refresh(parent, title, true)) : (listingCache.findDirectories(parent, title)) ;
+				} else {
+					dirs = DriveUtils.findDirectoriesWithTitle(client, title, DriveUtils.newId(parent), (Integer)null).getItems() ;
+				}
+				if (dirs == null || dirs.isEmpty()) {
 					logger.info(
 							String.format("The directory %s does not exists%s. It will be created.",
 							title,
 							((parent == null) ? ("") : (" (under " + parent.getTitle() + ")"))));
 					driveDirectory = DriveUtils.insertDirectory(client, title, null, DriveUtils.newId(parent));
-				} else if (dirs.getItems().size() > 1) {
+					if (listingCache != null) {
+						listingCache.add(parent, driveDirectory) ;
+						listingCache.addEmptyDirectory(driveDirectory) ;
+					}
+				} else if (dirs.size() > 1) {
 					throw new IllegalStateException ("There are " + dirs.size() + " directories with the name " + title + "...") ;
 				} else {
-					driveDirectory = dirs.getItems().get(0) ;		
+					driveDirectory = dirs.get(0) ;		
 				}
 				break ;
 			} catch (Throwable e) {
 				dealWithException (e, tryCounter) ;
+				// the directory may have been created even though the response was lost
+				refresh = true ;
 			}
 		}
 		return driveDirectory ;
 	}
 	
 	
-	private final static Tika tika = new Tika() ;
-	private static String findMineType (Path path) {
-		if (path == null) {
-			return null ;
-		}
+	private static File createDirectoryWithPermit (Drive client, DriveListingCache listingCache, final File parent, String title, boolean refresh) throws Throwable {
+		ConcurrencyController.INSTANCE.acquire();
 		try {
-			//return Files.probeContentType(path) ;
-			return tika.detect(new FileInputStream(path.toFile()));
-		} catch (IOException e) {
-			logger.error ("Error occurred while attempting to determine the mine type of " + path.toString(), e) ;
-			return null ;
+			return createDirectoryIfNotExist (client, listingCache, parent, title, refresh) ;
+		} finally {
+			ConcurrencyController.INSTANCE.release();
 		}
 	}
 	
 	
-	private static File insertFile (Drive service, String title,
+	/**
+	 * Resolves a directory from the listing of its parent, and if it does not exist yet, 
+	 * queues its creation so that it is sent along with the creation of its siblings. 
+	 * Should the batched creation fail, the creation is retried as a single request 
+	 * (using the given executor).
+	 */
+	private static ListenableFuture<File> createDirectoryIfNotExist (final Drive client, final DriveListingCache listingCache, DriveBatcher batcher, 
+			final File parent, final String title, Executor executor) throws Throwable {
+		
+		if (batcher == null || !listingCache.findDirectories(parent, title).isEmpty()) {
+			return Futures.immediateFuture(createDirectoryWithPermit (client, listingCache, parent, title, false)) ;
+		}
+		logger.info(
+				String.format("The directory %s does not exists%s. It will be created.",
+				title,
+				((parent == null) ? ("") : (" (under " + parent.getTitle() + ")"))));
+		ListenableFuture<File> inserted = Futures.transform(
+				batcher.submit(DriveUtils.newInsertDirectoryRequest(client, title, null, DriveUtils.newId(parent))), 
+				new Function<File, File> () {
+
+					@Override
+					public File apply(File driveDirectory) {
+						listingCache.add(parent, driveDirectory) ;
+						listingCache.addEmptyDirectory(driveDirectory) ;
+						return driveDirectory;
+					}}) ;
+		return Futures.withFallback(inserted, new FutureFallback<File> () {
+
+			@Override
+			public ListenableFuture<File> create(Throwable t) throws Exception {
+				logger.info(String.format("Error: %s", t.toString()));
+				try {
+					// the batch may have been carried out even though its response was lost
+					return Futures.immediateFuture(createDirectoryWithPermit (client, listingCache, parent, title, true)) ;
+				} catch (Throwable e) {
+					return Futures.immediateFailedFuture(e) ;
+				}
+			}}, executor) ;
+	}
+	
+	
+	private static String findMineType (Path path) {
+		return MimeTypeDetector.INSTANCE.detect(path) ;
+	}
+	
+	
+	private static File insertFile (HasConfiguration config, Drive service, String title,
 			HasDescription description, HasId parentId, HasMimeType mimeType,
 			String filename, InputStreamProgressFilter.StreamProgressCallback progressCallback) throws IOException {
 		
 		logger.info("Upload file  " + filename);
-		return DriveUtils.insertFile(service, title, description, 
+		return DriveUtils.insertFile(config, service, title, description, 
 				parentId, mimeType, filename, progressCallback) ;
 	}
 	
 	
-	private static File updateFile (String localMd5, Drive service, File driveFile, String newTitle,
+	enum QuickCheckResult {
+		CHANGED,
+		UNCHANGED,
+		INCONCLUSIVE
+	}
+	
+	
+	/**
+	 * Compares the size and the modification time of a local file with those of its 
+	 * remote copy. A different size proves a change, whereas the same size and the same 
+	 * modification time (which is set upon upload) show that the file is unchanged.
+	 */
+	static QuickCheckResult quickCheck (BasicFileAttributes attr, File driveFile) {
+		if (attr == null || driveFile == null || driveFile.getFileSize() == null) {
+			return QuickCheckResult.INCONCLUSIVE ;
+		}
+		if (attr.size() != driveFile.getFileSize().longValue()) {
+			return QuickCheckResult.CHANGED ;
+		}
+		if (driveFile.getModifiedDate() != null 
+				&& driveFile.getModifiedDate().getValue() == attr.lastModifiedTime().toMillis()) {
+			return QuickCheckResult.UNCHANGED ;
+		}
+		return QuickCheckResult.INCONCLUSIVE ;
+	}
+	
+	
+	private static File updateFile (HasConfiguration config, Path path, Drive service, File driveFile, String newTitle,
 			HasDescription newDescription, HasMimeType newMimeType,
-			String filename,
 			InputStreamProgressFilter.StreamProgressCallback progressCallback) throws IOException {
 		
 		File ret = null ;
-		String driveMd5 = driveFile.getMd5Checksum() ;
-		logger.info("Local md5: " + localMd5);
-		logger.info("drive md5: " + driveMd5);
-		if (!localMd5.equals(driveMd5)) {
+		String filename = path.toString() ;
+		boolean quickCheckEnabled = config.getUploadSettings().isQuickCheckEnabled() ;
+		BasicFileAttributes attr = io.uploader.drive.util.FileUtils.getFileAttr(path) ;
+		QuickCheckResult quickCheck = (quickCheckEnabled) ? (quickCheck (attr, driveFile)) : (QuickCheckResult.INCONCLUSIVE) ;
+		
+		String localMd5 = null ;
+		boolean changed ;
+		if (quickCheck == QuickCheckResult.CHANGED) {
+			logger.info("The sizes of the local file and of the drive file differ");
+			changed = true ;
+		} else if (quickCheck == QuickCheckResult.UNCHANGED) {
+			logger.info("The local file and the drive file have the same size and modification time");
+			changed = false ;
+		} else {
+			localMd5 = HashingService.INSTANCE.getMd5(path) ;
+			String driveMd5 = driveFile.getMd5Checksum() ;
+			logger.info("Local md5: " + localMd5);
+			logger.info("drive md5: " + driveMd5);
+			changed = !localMd5.equals(driveMd5) ;
+		}
+		if (changed) {
 			logger.info("A different version of the file with the name '" + driveFile.getTitle() + "' and type '" + driveFile.getMimeType() + "' already exists, it will be overwritten");
 			logger.info("Upload and overwrite file " + filename);
-			ret = DriveUtils.updateFile(service, DriveUtils.newId(driveFile.getId()), null, null, 
-					newMimeType, filename, progressCallback) ;
+			// the checksum (if any) is passed on, so that the file is not hashed once more
+			ret = DriveUtils.updateFile(config, service, DriveUtils.newId(driveFile.getId()), null, null, 
+					newMimeType, filename, localMd5, progressCallback) ;
 		} else {
 			logger.info("An identical version of the file with the name '" + driveFile.getTitle() + "' and type '" + driveFile.getMimeType() + "' already exists, it will not be uploaded again");
 			ret = driveFile ;
+			if (quickCheckEnabled && quickCheck == QuickCheckResult.INCONCLUSIVE && attr != null) {
+				// so that the next comparison does not require any hashing
+				ret = DriveUtils.setModifiedDate(service, DriveUtils.newId(driveFile.getId()), attr.lastModifiedTime().toMillis()) ;
+			}
 		}
 		return ret ;
 	}
 	
 	
 	public static File uploadFile (OperationResult operationResult, Drive client, final File driveParent, Path path, boolean overwrite, InputStreamProgressFilter.StreamProgressCallback progressCallback) throws Throwable {
+		return uploadFile (Configuration.INSTANCE, operationResult, client, null, null, driveParent, path, overwrite, progressCallback).getDriveFile() ;
+	}
+	
+	
+	/**
+	 * Outcome of the upload of a local file: the Drive file, and whether its content is known 
+	 * to match the local file (inserted, updated, copied or found identical), as opposed to an 
+	 * existing Drive file left as is without any comparison.
+	 */
+	static class UploadOutcome {
+		
+		private final File driveFile ;
+		private final boolean inSync ;
+		
+		UploadOutcome (File driveFile, boolean inSync) {
+			super () ;
+			this.driveFile = driveFile ;
+			this.inSync = inSync ;
+		}
+		
+		File getDriveFile () {
+			return driveFile ;
+		}
+		
+		boolean isInSync () {
+			return inSync ;
+		}
+	}
+	
+	
+	private static final long minDeduplicatedSize = 64 * 1024 ;
+	
+	/**
+	 * Copies on the server side a remote file which has the same content as the given local 
+	 * file, if any is known.
+	 * 
+	 * @return the copy, or {@code null} if there is no such remote file.
+	 */
+	private static File copyIfDuplicate (Drive client, DriveListingCache listingCache, DriveBatcher batcher, File driveParent, Path path) throws IOException {
+		DedupIndex dedupIndex = (listingCache == null) ? (null) : (listingCache.getDedupIndex()) ;
+		if (dedupIndex == null) {
+			return null ;
+		}
+		BasicFileAttributes attr = io.uploader.drive.util.FileUtils.getFileAttr(path) ;
+		// only the files having the same size as a known file are hashed
+		if (attr == null || attr.size() < minDeduplicatedSize || !dedupIndex.hasCandidates(attr.size())) {
+			return null ;
+		}
+		File source = dedupIndex.find(attr.size(), HashingService.INSTANCE.getMd5(path)) ;
+		if (source == null) {
+			return null ;
+		}
+		logger.info("The file " + path.toString() + " has the same content as the drive file " + source.getTitle() + " (" + source.getId() + "), it will be copied");
+		Drive.Files.Copy request = DriveUtils.newCopyFileRequest(client, DriveUtils.newId(source.getId()), 
+				path.getFileName().toString(), DriveUtils.newId(driveParent), attr.lastModifiedTime().toMillis()) ;
+		return (batcher == null) ? (request.execute()) : (batcher.execute(request)) ;
+	}
+	
+	
+	private static void trashFiles (Drive client, DriveListingCache listingCache, DriveBatcher batcher, File driveParent, List<File> files) throws IOException {
+		if (batcher == null) {
+			for (File file : files) {
+				logger.info("Trash duplicated file " + file.getTitle()) ;
+				DriveUtils.trashFile(client, DriveUtils.newId(file.getId())) ;
+				if (listingCache != null) {
+					listingCache.remove(driveParent, file) ;
+				}
+			}
+			return ;
+		}
+		// all the copies are trashed at once
+		List<ListenableFuture<File>> trashed = new ArrayList<ListenableFuture<File>> (files.size()) ;
+		for (File file : files) {
+			logger.info("Trash duplicated file " + file.getTitle()) ;
+			trashed.add(batcher.submit(DriveUtils.newTrashFileRequest(client, DriveUtils.newId(file.getId())))) ;
+		}
+		for (int i = 0 ; i < files.size() ; ++i) {
+			DriveBatcher.get(trashed.get(i)) ;
+			if (listingCache != null) {
+				listingCache.remove(driveParent, files.get(i)) ;
+			}
+		}
+	}
+	
+	
+	static UploadOutcome uploadFile (HasConfiguration config, OperationResult operationResult, Drive client, DriveListingCache listingCache, DriveBatcher batcher, final File driveParent, Path path, boolean overwrite, InputStreamProgressFilter.StreamProgressCallback progressCallback) throws Throwable {
 		
 		File ret = null ;
+		// the file is left as is (without any comparison) only if it exists and overwrite is off
+		boolean inSync = true ;
+		// whether the cached listing may be stale (i.e., after a failed attempt)
+		boolean refresh = false ;
 		AtomicInteger tryCounter = new AtomicInteger () ;
 		while (true) {
 			try {
@@ -240,35 +459,47 @@ public class DriveOperations {
 				
 				//FileList fileList = DriveUtils.findFilesWithTitleAndMineType(client, title, 
 				//		DriveUtils.newId(driveParent), DriveUtils.newMineType(mineType), null);
-				FileList fileList = DriveUtils.findFilesWithTitleAndMineType(client, title, 
-						DriveUtils.newId(driveParent), null, null);
+				List<File> fileList = null ;
+				if (listingCache != null) {
+					fileList = (refresh) ? (listingCache.refresh(driveParent, title, false)) : (listingCache.findFiles(driveParent, title)) ;
+				} else {
+					fileList = DriveUtils.findFilesWithTitleAndMineType(client, title, 
+						DriveUtils.newId(driveParent), null, null).getItems() ;
+				}
 		
-				if (fileList.getItems() == null || fileList.getItems().isEmpty()) {
-					// there exists no file with the name title, we create it
-					ret = insertFile (client, path.getFileName().toString(), null, 
-							DriveUtils.newId(driveParent), DriveUtils.newMineType(mineType), path.toString(), progressCallback) ;
+				if (fileList == null || fileList.isEmpty()) {
+					// there exists no file with the name title, we create it (copying an identical file if any)
+					ret = copyIfDuplicate (client, listingCache, batcher, driveParent, path) ;
+					if (ret == null) {
+						ret = insertFile (config, client, path.getFileName().toString(), null, 
+								DriveUtils.newId(driveParent), DriveUtils.newMineType(mineType), path.toString(), progressCallback) ;
+					}
+					if (listingCache != null) {
+						listingCache.add(driveParent, ret) ;
+					}
 				} else if (!overwrite) {
 					// there already exists at least one file with the name title, we do nothing
-					logger.info("File with the name '"+ title + "' and type '" + mineType + "' already exists in directory " + ((driveParent==null)?("root"):(driveParent.getTitle())) + " (there are "+ fileList.getItems().size() + " copies), it will be ignored");
-					ret = fileList.getItems().get(0) ;	
+					logger.info("File with the name '"+ title + "' and type '" + mineType + "' already exists in directory " + ((driveParent==null)?("root"):(driveParent.getTitle())) + " (there are "+ fileList.size() + " copies), it will be ignored");
+					ret = fileList.get(0) ;	
+					inSync = false ;
 				} else {
 					// there exists at least one file with the name title
-					if (fileList.getItems().size() > 1) {
+					if (fileList.size() > 1) {
 						// here there are more than one file with the name title.
 						// this is an unexpected situation! A warning message will be displayed
 						StringBuilder sb = new StringBuilder () ;
 						sb.append ("The folder '") ;
 						sb.append (driveParent.getTitle()) ;
 						sb.append ("' contains ") ;
-						sb.append (fileList.getItems().size()) ;
+						sb.append (fileList.size()) ;
 						sb.append (" files with the same name '") ;
 						sb.append (path.getFileName().toString()) ;
 						sb.append ("'.") ;
 						
 						// all the files with the name title are identical, we delete the unnecessary copies
-						String refMd5 = fileList.getItems().get(0).getMd5Checksum() ;
+						String refMd5 = fileList.get(0).getMd5Checksum() ;
 						boolean allIdentical = true ;
-						for (File file : fileList.getItems()) {
+						for (File file : fileList) {
 							if (!refMd5.equals(file.getMd5Checksum())) {
 								allIdentical = false ;
 								break ;
@@ -276,21 +507,13 @@ public class DriveOperations {
 						}
 						if (allIdentical) {
 							// remove unnecessary copies
-							boolean toBeTrashed = false ;
-							for (File file : fileList.getItems()) {
-								if (toBeTrashed) {
-									logger.info("Trashed duplicated file " + file.getTitle()) ;
-									DriveUtils.trashFile(client, DriveUtils.newId(file.getId())) ;
-								}
-								toBeTrashed = true ;
-							}
+							trashFiles (client, listingCache, batcher, driveParent, fileList.subList(1, fileList.size())) ;
 							sb.append (" The duplicated copies have been trashed and the remaining copy has been updated'") ;
 							operationResult.addWarning(path, OperationResult.newWarning(sb.toString()));
 							
 							//  we update the now unique remaining file if required
-							String localEtag = io.uploader.drive.util.FileUtils.getMD5(path.toFile()) ;
-							ret = updateFile (localEtag, client, fileList.getItems().get(0), null, null, 
-									DriveUtils.newMineType(mineType), path.toString(), progressCallback) ;
+							ret = updateFile (config, path, client, fileList.get(0), null, null, 
+									DriveUtils.newMineType(mineType), progressCallback) ;
 						} else {
 							// there are discrepancies between the files with the name title
 							// we add the new file without modifying the existing ones
@@ -299,27 +522,31 @@ public class DriveOperations {
 							sb.append ("' was uploaded as a new file") ;
 							operationResult.addWarning(path, OperationResult.newWarning(sb.toString()));
 							
-							ret = insertFile (client, path.getFileName().toString(), null, 
+							ret = insertFile (config, client, path.getFileName().toString(), null, 
 									DriveUtils.newId(driveParent), DriveUtils.newMineType(mineType), path.toString(), progressCallback) ;
+							if (listingCache != null) {
+								listingCache.add(driveParent, ret) ;
+							}
 						}
 					} else {
 						// there already exists only one file with the name title, we update the file if required
-						String localEtag = io.uploader.drive.util.FileUtils.getMD5(path.toFile()) ;
-						ret = updateFile (localEtag, client, fileList.getItems().get(0), null, null, 
-								DriveUtils.newMineType(mineType), path.toString(), progressCallback) ;
+						ret = updateFile (config, path, client, fileList.get(0), null, null, 
+								DriveUtils.newMineType(mineType), progressCallback) ;
 					} 
 				}
 				break ;
 			} catch (Throwable e) {
 				dealWithException (e, tryCounter) ;
+				// the file may have been inserted (or copied) even though the response was lost
+				refresh = true ;
 				logger.info("Is about to retry...");
 			}
 		}
-		return ret ;
+		return new UploadOutcome (ret, inSync) ;
 	}
 	
 	
-	private static boolean hasStopBeenRequested (StopRequester stopRequester) {
+	static boolean hasStopBeenRequested (StopRequester stopRequester) {
 		if (stopRequester == null) {
 			return false ;
 		} else {
@@ -345,125 +572,139 @@ public class DriveOperations {
 	}
 	
 	
-	private static Map<Path, File> createDirectoriesStructure (OperationResult operationResult, Drive client, File driveDestDirectory, Path srcDir , final StopRequester stopRequester, final HasStatusReporter statusReporter) throws IOException {
-		
-		Queue<Path> directoriesQueue = io.uploader.drive.util.FileUtils
-				.getAllFilesPath(srcDir,
-						FileFinderOption.DIRECTORY_ONLY);
+	/**
+	 * Walks the source tree once, creating the Drive directories and transferring the files 
+	 * on the fly: a directory is created as soon as its parent is resolved (siblings being 
+	 * created concurrently), and a file is uploaded as soon as its directory is resolved. 
+	 * The scan, the directories creation and the files transfer therefore overlap.
+	 */
+	private static void uploadTree (HasConfiguration config, final OperationResult operationResult, final Drive client, final DriveListingCache listingCache, 
+			final DriveBatcher batcher, SyncManifest manifest, File driveDestDirectory, Path srcDir, boolean overwrite, final StopRequester stopRequester, final HasStatusReporter statusReporter) throws IOException {
 		
 		if (statusReporter != null) {
 			statusReporter.setCurrentProgress(0.0) ;
 			statusReporter.setTotalProgress(0.0);
-			statusReporter.setStatus("Checking/creating directories structure...");
+			statusReporter.setStatus("Transfering files...");
 		}
 		
-		long count = 0 ;
-		Path topParent = srcDir.getParent() ;
-		Map<Path, File> localPathDriveFileMapping = new HashMap <Path, File> () ;
-		localPathDriveFileMapping.put(topParent, driveDestDirectory) ;
-		for (Path path : directoriesQueue) {
-			try {
-				if (statusReporter != null) {
-					statusReporter.setCurrentProgress(0.0) ;
-					statusReporter.setStatus("Checking/creating directories structure... (" + path.getFileName().toString() + ")");
-				}
-				
-				if (hasStopBeenRequested (stopRequester)) {
-					if (statusReporter != null) {
-						statusReporter.setStatus("Stopped!");
-					}
-					operationResult.setStatus (OperationCompletionStatus.STOPPED) ;
-					return localPathDriveFileMapping ;
-				}
-				
-				File driveParent = localPathDriveFileMapping.get(path.getParent()) ;
-				if (driveParent == null) {
-					throw new IllegalStateException ("The path " + path.toString() + " does not have any parent in the drive (parent path " + path.getParent().toString() + ")...") ;
-				}
-				// check whether driveParent already exists, otherwise create it
-				File driveDirectory = createDirectoryIfNotExist (client, driveParent, path.getFileName().toString()) ;
-				localPathDriveFileMapping.put(path, driveDirectory) ;
-				
-				++count ;
-				if (statusReporter != null) {
-					double p = ((double)count) / directoriesQueue.size() ;
-					statusReporter.setTotalProgress(p) ;
-					statusReporter.setCurrentProgress(1.0) ;
-				}
-			} catch (Throwable e) {
-				logger.error("Error occurred while creating the directory " + path.toString (), e);
-				operationResult.setStatus (OperationCompletionStatus.ERROR) ;
-				operationResult.addError(path, e);
-			}
-		}
-		return localPathDriveFileMapping ;
-	}
-	
-	
-	private static void uploadFiles (OperationResult operationResult, Map<Path, File> localPathDriveFileMapping, Drive client, Path srcDir , boolean overwrite, final StopRequester stopRequester, final HasStatusReporter statusReporter) throws IOException {
+		// the controller sets the actual number of operations in flight, up to the maximum
+		HasUploadSettings uploadSettings = config.getUploadSettings() ;
+		ConcurrencyController.INSTANCE.configure(uploadSettings.getConcurrency(), uploadSettings.getMaxConcurrency(), 
+				uploadSettings.isAdaptiveConcurrency());
+		final int concurrency = uploadSettings.getMaxConcurrency() ;
+		HttpClientUtils.setConcurrency(concurrency) ;
+		final ListeningExecutorService directoryExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(concurrency, 
+				new ThreadFactoryBuilder().setNameFormat("drive-directory-%d").setDaemon(true).build())) ;
+		final FileUploadEngine engine = new FileUploadEngine (config, concurrency, 
+				operationResult, client, listingCache, batcher, manifest, overwrite, stopRequester, statusReporter) ;
+		
+		// the future Drive directory of each local directory
+		final Map<Path, ListenableFuture<File>> localPathDriveFileMapping = new HashMap <Path, ListenableFuture<File>> () ;
+		localPathDriveFileMapping.put(srcDir.getParent(), Futures.immediateFuture(driveDestDirectory)) ;
 		
-		Queue<Path> filesQueue = io.uploader.drive.util.FileUtils
-				.getAllFilesPath(srcDir,
-						FileFinderOption.FILE_ONLY);
+		try {
+			io.uploader.drive.util.FileUtils.walkFileTree(srcDir, new io.uploader.drive.util.FileUtils.FileTreeListener () {
 
-		int count = 0 ;
-		for (Path path : filesQueue) {
-			try {
-				if (statusReporter != null) {
-					BasicFileAttributes attr =  io.uploader.drive.util.FileUtils.getFileAttr(path) ;
-					StringBuilder sb = new StringBuilder () ;
-					sb.append("Transfering files (") ;
-					sb.append(path.getFileName().toString()) ;
-					if (attr != null) {
-						sb.append(" - size: ") ;
-						sb.append(io.uploader.drive.util.FileUtils.humanReadableByteCount(attr.size(), true)) ;
-					}
-					sb.append(")") ;
-					statusReporter.setStatus(sb.toString());
-				}
-				
-				if (hasStopBeenRequested (stopRequester)) {
-					if (statusReporter != null) {
-						statusReporter.setStatus("Stopped!");
+				@Override
+				public boolean onDirectory(final Path path, BasicFileAttributes attr) {
+					
+					if (hasStopBeenRequested (stopRequester)) {
+						return false ;
 					}
-					operationResult.setStatus (OperationCompletionStatus.STOPPED) ;
-					return ;
-				}
-				
-				final File driveParent = localPathDriveFileMapping.get(path.getParent()) ;
-				if (driveParent == null) {
-					throw new IllegalStateException ("The path " + path.toString() + " does not have any parent in the drive (parent path " + path.getParent().toString() + ")...") ;
-				}
-				
-				InputStreamProgressFilter.StreamProgressCallback progressCallback = null ;
-				if (statusReporter != null) {
-					progressCallback = new InputStreamProgressFilter.StreamProgressCallback () {
-	
+					ListenableFuture<File> driveParent = localPathDriveFileMapping.get(path.getParent()) ;
+					ListenableFuture<File> driveDirectory = Futures.transform(driveParent, new AsyncFunction<File, File> () {
+
 						@Override
-						public void onStreamProgress(double progress) {
-							if (statusReporter != null) {
-								statusReporter.setCurrentProgress(progress) ;
+						public ListenableFuture<File> apply(File parent) throws Exception {
+							try {
+								if (statusReporter != null) {
+									statusReporter.setStatus("Checking/creating directory " + path.getFileName().toString());
+								}
+								// check whether the directory already exists, otherwise create it (the batches 
+								// and the single requests take their permits when they are sent)
+								ListenableFuture<File> dir = createDirectoryIfNotExist (client, listingCache, batcher, parent, 
+										path.getFileName().toString(), directoryExecutor) ;
+								Futures.addCallback(dir, new FutureCallback<File> () {
+
+									@Override
+									public void onSuccess(File result) {
+										// its content will soon be needed
+										listingCache.prefetch(result);
+									}
+
+									@Override
+									public void onFailure(Throwable e) {
+										logger.error("Error occurred while creating the directory " + path.toString (), e);
+										operationResult.setStatus (OperationCompletionStatus.ERROR) ;
+										operationResult.addError(path, e);
+									}}) ;
+								return dir ;
+							} catch (Throwable e) {
+								logger.error("Error occurred while creating the directory " + path.toString (), e);
+								operationResult.setStatus (OperationCompletionStatus.ERROR) ;
+								operationResult.addError(path, e);
+								return Futures.immediateFailedFuture(e) ;
 							}
-						}} ;
-				}
-				uploadFile (operationResult, client, driveParent, path, overwrite, progressCallback) ;
-				
-				++count ;
-				if (statusReporter != null) {
-					double p = ((double)count) / filesQueue.size() ;
-					statusReporter.setTotalProgress(p) ;
-					statusReporter.setStatus("Transfering files...");
+						}}, directoryExecutor) ;
+					localPathDriveFileMapping.put(path, driveDirectory) ;
+					return true ;
 				}
-			} catch (Throwable e) {
-				logger.error("Error occurred while transfering the file " + path.toString (), e);
-				operationResult.setStatus (OperationCompletionStatus.ERROR) ;
-				operationResult.addError(path, e);
+
+				@Override
+				public boolean onFile(Path path, BasicFileAttributes attr) {
+					try {
+						return engine.submit(path, attr, localPathDriveFileMapping.get(path.getParent())) ;
+					} catch (InterruptedException e) {
+						logger.info("Interrupted while transfering files");
+						Thread.currentThread().interrupt();
+						return false ;
+					}
+				}}) ;
+			engine.setScanCompleted();
+			
+			// wait for the pending uploads and for the directories without any file
+			engine.awaitCompletion();
+			Futures.successfulAsList(localPathDriveFileMapping.values()).get() ;
+		} catch (InterruptedException e) {
+			logger.info("Interrupted while transfering files");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// cannot happen with successfulAsList
+			logger.error("Error occurred while transfering files", e);
+		} finally {
+			engine.shutdown();
+			directoryExecutor.shutdownNow() ;
+		}
+		
+		if (hasStopBeenRequested (stopRequester) || Thread.currentThread().isInterrupted()) {
+			if (statusReporter != null) {
+				statusReporter.setStatus("Stopped!");
 			}
+			operationResult.setStatus (OperationCompletionStatus.STOPPED) ;
+		}
+	}
+	
+	
+	private static SyncManifest openSyncManifest (HasConfiguration config, Path srcDir, File driveDestDirectory) {
+		if (!config.getUploadSettings().isSyncManifestEnabled() || config.getDataStoreDirectory() == null) {
+			return null ;
+		}
+		try {
+			return SyncManifest.open(config.getDataStoreDirectory(), srcDir, 
+					(driveDestDirectory.getId() == null) ? ("root") : (driveDestDirectory.getId())) ;
+		} catch (IOException e) {
+			logger.error("The sync manifest could not be opened, all the files will be checked against the drive", e);
+			return null ;
 		}
 	}
 	
 	
 	public static OperationResult uploadDirectory (Drive client, File destDir, Path srcDir, boolean overwrite, final StopRequester stopRequester, final HasStatusReporter statusReporter) throws Throwable {
+		return uploadDirectory (Configuration.INSTANCE, client, destDir, srcDir, overwrite, stopRequester, statusReporter) ;
+	}
+	
+	
+	public static OperationResult uploadDirectory (HasConfiguration config, Drive client, File destDir, Path srcDir, boolean overwrite, final StopRequester stopRequester, final HasStatusReporter statusReporter) throws Throwable {
 		
 		if (client == null) {
 			throw new IllegalArgumentException ("The Drive cannot be null") ;
@@ -477,26 +718,24 @@ public class DriveOperations {
 		// create the parent directory
 		File driveDestDirectory = destDir ;
 		
-		// first, we create the directories structure
-		Map<Path, File> localPathDriveFileMapping = createDirectoriesStructure (ret, client, driveDestDirectory, srcDir, stopRequester, statusReporter) ;
-		// If the directory structure is ill-formed, then we should not go any further...
-		Preconditions.checkState(ret.getStatus() != OperationCompletionStatus.ERROR) ;
-		Preconditions.checkNotNull(localPathDriveFileMapping) ;
-		
-		if (ret.getStatus() == OperationCompletionStatus.STOPPED) {
-			return ret ;
-		}
-		
-		// then, we transfer the files using localPathDriveFileMapping
-		if (statusReporter != null) {
-			statusReporter.setCurrentProgress(0.0) ;
-			statusReporter.setTotalProgress(0.0);
-			statusReporter.setStatus("Transfering files...");
-		}
-		
-		uploadFiles (ret, localPathDriveFileMapping, client, srcDir , overwrite, stopRequester, statusReporter) ;
-		if (ret.getStatus() == OperationCompletionStatus.STOPPED) {
-			return ret ;
+		// the remote listings are shared by the directories creation and the files transfer
+		DedupIndex dedupIndex = (config.getUploadSettings().isDeduplicationEnabled()) ? (new DedupIndex ()) : (null) ;
+		DriveListingCache listingCache = new DriveListingCache (client, dedupIndex) ;
+		// the metadata requests (e.g., directories creation) are grouped into batches
+		DriveBatcher batcher = new DriveBatcher (client, ConcurrencyController.INSTANCE) ;
+		// the files already uploaded by a previous run are skipped without any request
+		SyncManifest manifest = openSyncManifest (config, srcDir, driveDestDirectory) ;
+		try {
+			uploadTree (config, ret, client, listingCache, batcher, manifest, driveDestDirectory, srcDir, overwrite, stopRequester, statusReporter) ;
+			if (ret.getStatus() == OperationCompletionStatus.STOPPED) {
+				return ret ;
+			}
+		} finally {
+			listingCache.shutdown();
+			batcher.shutdown();
+			if (manifest != null) {
+				manifest.close();
+			}
 		}
 		
 		if (statusReporter != null) {
@@ -18,7 +18,8 @@
 package io.uploader.drive.drive;
 
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Children;
 import com.google.api.services.drive.Drive.Files;
@@ -33,17 +34,16 @@ import io.uploader.drive.config.Configuration;
 import io.uploader.drive.config.HasConfiguration;
 import io.uploader.drive.drive.largefile.GDriveUpdater;
 import io.uploader.drive.drive.largefile.GDriveUploader;
-import io.uploader.drive.drive.media.CustomDriveApiProgressListener;
 import io.uploader.drive.drive.media.CustomProgressListener;
 import io.uploader.drive.drive.media.MediaHttpUploader;
 import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -117,6 +117,21 @@ public class DriveUtils {
 	
 	private static final long largeFileMinimumSize = 30 * 1024 * 1024 ;
 	
+	private static final int maxListingPageSize = 1000 ;
+	
+	// partial responses: only the fields actually read are requested (the full resources come 
+	// with the permissions, links, owners, labels, etc.)
+	public static final String fileFields = "id,title,mimeType,md5Checksum,fileSize,modifiedDate,parents(id)" ;
+	public static final String directoryFields = "id,title,mimeType,parents(id)" ;
+	private static final String trashedFileFields = "id" ;
+	private static final String childFields = "nextPageToken,items(id)" ;
+	
+	
+	private static String listFields (String itemFields) {
+		return "nextPageToken,items(" + itemFields + ")" ;
+	}
+	
+	
 	public static File getFile(Drive service, HasId id) throws IOException {
 		
 		Preconditions.checkNotNull(service) ;
@@ -124,7 +139,7 @@ public class DriveUtils {
 		if (org.apache.commons.lang3.StringUtils.isEmpty(id.getId())) {
 			throw new IllegalArgumentException () ;
 		}
-		return service.files().get(id.getId()).execute();
+		return service.files().get(id.getId()).setFields(fileFields).execute();
 	}
 	
 	
@@ -134,7 +149,7 @@ public class DriveUtils {
 		if (org.apache.commons.lang3.StringUtils.isEmpty(file.getId())) {
 			throw new IllegalArgumentException () ;
 		}
-		Children.List request = service.children().list(file.getId());
+		Children.List request = service.children().list(file.getId()).setFields(childFields);
 		return request.execute();
 	}
 	
@@ -162,6 +177,18 @@ public class DriveUtils {
 	public static File insertDirectory(Drive service, String title,
 			HasDescription description, HasId parentId)
 			throws IOException {
+		return newInsertDirectoryRequest(service, title, description, parentId).execute();
+	}
+	
+	
+	/**
+	 * Build the request inserting a new folder, without executing it (e.g., so that it can be batched).
+	 * 
+	 * @see #insertDirectory(Drive, String, HasDescription, HasId)
+	 */
+	public static Drive.Files.Insert newInsertDirectoryRequest(Drive service, String title,
+			HasDescription description, HasId parentId)
+			throws IOException {
 
 		if (service == null
 				|| org.apache.commons.lang3.StringUtils.isEmpty(title)) {
@@ -180,8 +207,7 @@ public class DriveUtils {
 			}
 		}
 
-		File file = service.files().insert(body).execute();
-		return file;
+		return service.files().insert(body).setFields(directoryFields);
 	}
 	
 
@@ -202,6 +228,60 @@ public class DriveUtils {
 	}
 	
 	
+	/**
+	 * Build the request copying a file into a folder, without executing it (e.g., so that it can be batched).
+	 * 
+	 * @param service
+	 *            Drive API service instance.
+	 * @param sourceId
+	 *            ID of the file to copy.
+	 * @param title
+	 *            Title of the copy.
+	 * @param parentId
+	 *            Optional parent folder's ID.
+	 * @param modifiedDate
+	 *            Modification time of the copy, in milliseconds since the epoch.
+	 * @return The copy request.
+	 * @throws IOException
+	 */
+	public static Drive.Files.Copy newCopyFileRequest(Drive service, HasId sourceId, String title, 
+			HasId parentId, long modifiedDate) throws IOException {
+		if (service == null || sourceId == null || org.apache.commons.lang3.StringUtils.isEmpty(sourceId.getId())
+				|| org.apache.commons.lang3.StringUtils.isEmpty(title)) {
+			throw new IllegalArgumentException();
+		}
+		File body = new File();
+		body.setTitle(title);
+		body.setModifiedDate(new DateTime(modifiedDate));
+		if (parentId != null && org.apache.commons.lang3.StringUtils.isNotEmpty(parentId.getId())) {
+			body.setParents(Arrays.asList(new ParentReference().setId(parentId.getId())));
+		}
+		return service.files().copy(sourceId.getId(), body).setFields(fileFields);
+	}
+	
+	
+	/**
+	 * Set the modification time of a file.
+	 * 
+	 * @param service
+	 *            Drive API service instance.
+	 * @param fileId
+	 *            ID of the file to update.
+	 * @param modifiedDate
+	 *            Modification time, in milliseconds since the epoch.
+	 * @return The updated file.
+	 * @throws IOException
+	 */
+	public static File setModifiedDate(Drive service, HasId fileId, long modifiedDate) throws IOException {
+		if (service == null || fileId == null || org.apache.commons.lang3.StringUtils.isEmpty(fileId.getId())) {
+			throw new IllegalArgumentException();
+		}
+		File body = new File();
+		body.setModifiedDate(new DateTime(modifiedDate));
+		return service.files().patch(fileId.getId(), body).setSetModifiedDate(true).setFields(fileFields).execute();
+	}
+	
+	
 	/**
 	 * Move a file to the trash.
 	 * 
@@ -213,10 +293,20 @@ public class DriveUtils {
 	 * @throws IOException 
 	 */
 	public static File trashFile(Drive service, HasId fileId) throws IOException {
+		return newTrashFileRequest(service, fileId).execute();
+	}
+	
+	
+	/**
+	 * Build the request moving a file to the trash, without executing it (e.g., so that it can be batched).
+	 * 
+	 * @see #trashFile(Drive, HasId)
+	 */
+	public static Drive.Files.Trash newTrashFileRequest(Drive service, HasId fileId) throws IOException {
 		if (service == null || fileId == null || org.apache.commons.lang3.StringUtils.isEmpty(fileId.getId())) {
 			throw new IllegalArgumentException();
 		}
-		return service.files().trash(fileId.getId()).execute();
+		return service.files().trash(fileId.getId()).setFields(trashedFileFields);
 	}
 
 	
@@ -282,12 +372,51 @@ public class DriveUtils {
 		
 		logger.info("findDirectoriesWithTitle: " + query.toString()) ;
 		
-		request = request.setQ(query.toString());
+		request = request.setQ(query.toString()).setFields(listFields(directoryFields));
 		FileList files = request.execute();
 		return files;
 	}
 	
 	
+	/**
+	 * List all the (non-trashed) children of a folder, following the pages of the listing.
+	 * 
+	 * @param service
+	 *            Drive API service instance.
+	 * @param parentId
+	 *            Optional parent folder's ID (the root folder if not specified).
+	 * @return List of file metadatas.
+	 * @throws IOException
+	 */
+	public static List<File> listChildren(Drive service, HasId parentId)
+			throws IOException {
+		
+		Preconditions.checkNotNull(service) ;
+		StringBuilder query = new StringBuilder();
+		query.append("'");
+		if (parentId != null && org.apache.commons.lang3.StringUtils.isNotEmpty(parentId.getId())) {
+			query.append(escape(parentId.getId()));
+		} else {
+			query.append("root");
+		}
+		query.append("' in parents and trashed=false");
+		
+		logger.info("listChildren: " + query.toString()) ;
+		
+		List<File> ret = new ArrayList<File> () ;
+		Files.List request = service.files().list().setQ(query.toString()).setMaxResults(maxListingPageSize)
+				.setFields(listFields(fileFields));
+		do {
+			FileList files = request.execute();
+			if (files.getItems() != null) {
+				ret.addAll(files.getItems()) ;
+			}
+			request.setPageToken(files.getNextPageToken());
+		} while (org.apache.commons.lang3.StringUtils.isNotEmpty(request.getPageToken())) ;
+		return ret;
+	}
+	
+	
 	private static String escape (String str) {
 		if (str == null) {
 			return null ;
@@ -342,7 +471,7 @@ public class DriveUtils {
 		
 		logger.info("findFilesWithTitleAndMineType: " + query.toString()) ;
 		
-		request = request.setQ(query.toString());
+		request = request.setQ(query.toString()).setFields(listFields(fileFields));
 		FileList files = request.execute();
 		return files;
 	}
@@ -425,70 +554,58 @@ public class DriveUtils {
 		// https://code.google.com/p/google-api-java-client/wiki/MediaUpload
 		BasicFileAttributes attr = io.uploader.drive.util.FileUtils
 				.getFileAttr(Paths.get(filename));
-		boolean useMediaUpload = (attr != null && attr.size() > largeFileMinimumSize);
 		
-		boolean useOldApi = true ;
-		boolean useCustomMediaUpload = true ;
+		// the local modification time is kept, so that it can be compared later on
+		if (attr != null) {
+			body.setModifiedDate(new DateTime(attr.lastModifiedTime().toMillis()));
+		}
+		boolean useMediaUpload = (attr != null && attr.size() > largeFileMinimumSize);
 		
 		if (useMediaUpload) {
 			File file = null ;
 			
-			// if large file, there exists a nasty bug in the new API which remains unresolved, 
-			// therefore we currently need to rely on the old API (even though it has been deprecated...)
+			// if large file, there exists a nasty bug in the media upload of the client library which remains unresolved, 
+			// therefore we rely either on our own implementation of the resumable protocol (Drive v2 endpoint)
+			// or on our own media uploader, which sends the chunks as regions of the file
 			// see: https://code.google.com/p/google-api-python-client/issues/detail?id=231
-			if (useOldApi) {
-				GDriveUploader upload = new GDriveUploader(config,
-						title, description, parentId, mimeType, filename,
-						progressCallback);
+			if (!config.getUploadSettings().isMediaUploaderEnabled()) {
+				GDriveUploader upload = new GDriveUploader(config, body, filename, progressCallback);
 
 				String fileId = upload.uploadFile();
 				Preconditions.checkState(org.apache.commons.lang3.StringUtils.isNotEmpty(fileId));
-				// get the file from response
-				file = getFile (service, newId(fileId)) ;
+				// the resource (modification time included) comes with the response to the last chunk
+				file = upload.getUploadedFile() ;
 			}
 			else
 			{		
 				logger.info("Media Upload is used for large files");
-				java.io.File mediaFile = new java.io.File(filename);
-				InputStreamContent mediaContent = new InputStreamContent(type,
-						new BufferedInputStream(
-								io.uploader.drive.util.FileUtils
-										.getInputStreamWithProgressFilter(
-												progressCallback, mediaFile.length(),
-												new FileInputStream(mediaFile))));	
-	
-				mediaContent.setRetrySupported(true) ;
-				// TODO: there seems to exist a bug when the size is set... (java.io.IOException: insufficient data written)
-				// ...
-				//mediaContent.setLength(mediaFile.length());
-				mediaContent.setLength(-1);
+				// the chunks are read from the file (regions), rather than buffered from a stream
+				DriveFileContent mediaContent = new DriveFileContent(type, new java.io.File(filename), progressCallback);
+				Drive.Files.Insert request = service.files().insert(body, mediaContent).setFields(fileFields);
 				
-				Drive.Files.Insert request = service.files().insert(body, mediaContent);
+				MediaHttpUploader mediaHttpUploader = new MediaHttpUploader (
+						mediaContent, 
+						request.getAbstractGoogleClient().getRequestFactory().getTransport(), 
+						request.getAbstractGoogleClient().getRequestFactory().getInitializer()) ;
 				
-				if (useCustomMediaUpload) {
-					MediaHttpUploader mediaHttpUploader = new MediaHttpUploader (
-							mediaContent, 
-							request.getAbstractGoogleClient().getRequestFactory().getTransport(), 
-							request.getAbstractGoogleClient().getRequestFactory().getInitializer()) ;
-					
-					mediaHttpUploader.setDisableGZipContent(true) ;
-					mediaHttpUploader.setProgressListener(new CustomProgressListener());
-
-					HttpResponse response = mediaHttpUploader.upload(request.buildHttpRequestUrl());
-					try {
-						if (!response.isSuccessStatusCode()) {
-							logger.error ("Error occurred while transferring the large file: " + response.getStatusMessage() + " (Status code: "+ response.getStatusCode()+ ")") ;
-						} 
-						file = response.parseAs(com.google.api.services.drive.model.File.class) ;
-					} finally {
-						response.disconnect();
-					}
-					
-				} else {
-					request.getMediaHttpUploader().setDisableGZipContent(true) ;
-					request.getMediaHttpUploader().setProgressListener(new CustomDriveApiProgressListener()) ;
-					request.setDisableGZipContent(true) ;
-					file = request.execute();
+				mediaHttpUploader.setMetadata(new JsonHttpContent (service.getJsonFactory(), body)) ;
+				mediaHttpUploader.setDisableGZipContent(true) ;
+				mediaHttpUploader.setChunkSizer(new ChunkSizer (config.getUploadSettings())) ;
+				mediaHttpUploader.setProgressListener(new CustomProgressListener());
+
+				HttpResponse response = mediaHttpUploader.upload(request.buildHttpRequestUrl());
+				try {
+					if (!response.isSuccessStatusCode()) {
+						logger.error ("Error occurred while transferring the large file: " + response.getStatusMessage() + " (Status code: "+ response.getStatusCode()+ ")") ;
+						throw new IOException ("Error occurred while transferring the large file (Status code: "+ response.getStatusCode()+ ")") ;
+					} 
+					// the requests of the uploader have no parser, the one of the service is used
+					file = service.getObjectParser().parseAndClose(response.getContent(), response.getContentCharset(), 
+							com.google.api.services.drive.model.File.class) ;
+					// the checksum is computed from the regions of the file as they are sent
+					checkMd5(mediaHttpUploader.getContentMd5(), filename, file) ;
+				} finally {
+					response.disconnect();
 				}
 			}
 			return file ;
@@ -497,9 +614,25 @@ public class DriveUtils {
 			java.io.File fileContent = new java.io.File(filename);
 			DriveFileContent mediaContent = new DriveFileContent(type,
 					fileContent, progressCallback);
-			Insert insert = service.files().insert(body, mediaContent) ;
-			return insert.execute();
+			Insert insert = service.files().insert(body, mediaContent).setFields(fileFields) ;
+			return checkMd5(mediaContent, insert.execute());
+		}
+	}
+	
+	
+	/**
+	 * Checks the MD5 checksum computed while sending the content against the one of the uploaded file.
+	 */
+	private static File checkMd5(DriveFileContent content, File file) throws IOException {
+		return checkMd5(content.getMd5(), content.getFile().getPath(), file) ;
+	}
+	
+	
+	private static File checkMd5(String localMd5, String filename, File file) throws IOException {
+		if (file != null && localMd5 != null && file.getMd5Checksum() != null && !localMd5.equals(file.getMd5Checksum())) {
+			throw new IOException ("The md5 values do not match (" + filename + ")") ;
 		}
+		return file ;
 	}
 	
 	
@@ -526,7 +659,7 @@ public class DriveUtils {
 			throws IOException {
 		
 		return updateFile (Configuration.INSTANCE, service, fileId, newTitle,
-				newDescription, newMimeType, filename, progressCallback) ;	
+				newDescription, newMimeType, filename, null, progressCallback) ;	
 	}
 	
 	
@@ -545,12 +678,14 @@ public class DriveUtils {
 	 *            New description for the file.
 	 * @param newMimeType
 	 *            New MIME type for the file.
+	 * @param md5
+	 *            Optional MD5 checksum of the file, if already known.
 	 * @return Updated file metadata if successful, {@code null} otherwise.
 	 * @throws IOException
 	 */	
 	public static File updateFile(HasConfiguration config, Drive service, HasId fileId, String newTitle,
 			HasDescription newDescription, HasMimeType newMimeType,
-			String filename,
+			String filename, String md5,
 			InputStreamProgressFilter.StreamProgressCallback progressCallback)
 			throws IOException {
 
@@ -559,7 +694,7 @@ public class DriveUtils {
 			throw new IllegalArgumentException();
 		}
 		
-		// First retrieve the file from the API.
+		// First retrieve the file from the API (the whole resource, as it is sent back with the update).
 		File file = service.files().get(fileId.getId()).execute();
 
 		// File's new metadata.
@@ -573,17 +708,18 @@ public class DriveUtils {
 			file.setMimeType(newMimeType.getMimeType());
 		}
 
-		// if large file, the same bug as for uploading exists, therefore we currently need to rely on the old api
-		// see: https://code.google.com/p/google-api-python-client/issues/detail?id=231
-		boolean useOldApi = true ;
 		boolean useMediaUpload = false ;
 		
 		DriveFileContent mediaContent = null ;
+		BasicFileAttributes attr = null ;
 		if (org.apache.commons.lang3.StringUtils.isNotEmpty(filename)) {
 			
-			BasicFileAttributes attr = io.uploader.drive.util.FileUtils
+			attr = io.uploader.drive.util.FileUtils
 					.getFileAttr(Paths.get(filename));
 			useMediaUpload = (attr != null && attr.size() > largeFileMinimumSize);
+			if (attr != null) {
+				file.setModifiedDate(new DateTime(attr.lastModifiedTime().toMillis()));
+			}
 					
 			java.io.File fileContent = new java.io.File(filename);
 			mediaContent = new DriveFileContent(file.getMimeType(), fileContent, progressCallback);
@@ -592,27 +728,20 @@ public class DriveUtils {
 		// Send the request to the API.
 		File updatedFile = null ;
 		if (useMediaUpload) {
-			// update metadata
-			logger.info("Update metadata");
-			updatedFile = service.files().update(fileId.getId(), file).execute();
-			
-			// we need to upload the new media content
-			logger.info("Update content");
-			if (useOldApi) {
-				GDriveUpdater upload = new GDriveUpdater(config, newId(updatedFile.getId()), newMimeType, filename, progressCallback) ;
-				upload.updateFile();
-			} else {
-				// TODO:
-				// ...
-				throw new IllegalStateException ("Not implemented") ;
-			}
-			updatedFile = getFile (service, newId(updatedFile.getId())) ;
+			// if large file, the same bug as for uploading exists, therefore we rely on our own implementation
+			// see: https://code.google.com/p/google-api-python-client/issues/detail?id=231
+			// the metadata (modification time included) are sent along with the new media content
+			logger.info("Update metadata and content");
+			GDriveUpdater upload = new GDriveUpdater(config, fileId, file, filename, md5, progressCallback) ;
+			upload.updateFile();
+			updatedFile = upload.getUploadedFile() ;
 		} else {
 			// update metadata, and content (if any) of small files
 			if (mediaContent != null) {
-				updatedFile = service.files().update(fileId.getId(), file, mediaContent).execute();
+				updatedFile = checkMd5(mediaContent, service.files().update(fileId.getId(), file, mediaContent)
+						.setSetModifiedDate(attr != null).setFields(fileFields).execute());
 			} else {
-				updatedFile = service.files().update(fileId.getId(), file).execute();
+				updatedFile = service.files().update(fileId.getId(), file).setFields(fileFields).execute();
 			}
 		}
 		return updatedFile;
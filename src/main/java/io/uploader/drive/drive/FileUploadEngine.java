@@ -0,0 +1,358 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import io.uploader.drive.config.HasConfiguration;
+import io.uploader.drive.drive.DriveOperations.HasStatusReporter;
+import io.uploader.drive.drive.DriveOperations.OperationCompletionStatus;
+import io.uploader.drive.drive.DriveOperations.OperationResult;
+import io.uploader.drive.drive.DriveOperations.StopRequester;
+import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs up to a bounded number of {@link DriveOperations#uploadFile} calls at once.
+ * 
+ * <p>
+ * Files are submitted one by one by the thread walking the local tree, together with 
+ * the future of their Drive parent directory; the upload starts as soon as the parent is 
+ * resolved. The submitting thread blocks as soon as all the upload slots are taken, so that 
+ * the number of pending uploads never exceeds the maximum concurrency level. Within that 
+ * bound, the number of uploads actually in flight is set by the {@link ConcurrencyController}. 
+ * All the outcomes are aggregated into the {@link OperationResult} given at construction time.
+ * </p>
+ */
+class FileUploadEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileUploadEngine.class);
+	
+	private final HasConfiguration config ;
+	private final Drive client ;
+	private final DriveListingCache listingCache ;
+	private final DriveBatcher batcher ;
+	private final SyncManifest manifest ;
+	private final boolean overwrite ;
+	private final boolean quickCheckEnabled ;
+	private final OperationResult operationResult ;
+	private final StopRequester stopRequester ;
+	private final HasStatusReporter statusReporter ;
+	
+	private final int concurrency ;
+	private final ExecutorService executor ;
+	// looks up the remote copies of the queued files, so that their hashing starts early
+	private final ExecutorService md5Prefetcher ;
+	private final Semaphore slots ;
+	
+	private final AtomicInteger submitted = new AtomicInteger () ;
+	private final AtomicInteger completed = new AtomicInteger () ;
+	private volatile boolean scanCompleted = false ;
+	
+	private static final long reportingPeriodMillis = 1000 ;
+	private final TransferMeter meter = new TransferMeter () ;
+	private final ScheduledExecutorService reporter ;
+	
+	FileUploadEngine (HasConfiguration config, int concurrency, OperationResult operationResult, Drive client, DriveListingCache listingCache, DriveBatcher batcher, SyncManifest manifest, 
+			boolean overwrite, StopRequester stopRequester, HasStatusReporter statusReporter) {
+		super () ;
+		Preconditions.checkArgument(concurrency > 0) ;
+		this.config = Preconditions.checkNotNull(config) ;
+		this.concurrency = concurrency ;
+		this.operationResult = Preconditions.checkNotNull(operationResult) ;
+		this.client = Preconditions.checkNotNull(client) ;
+		this.listingCache = listingCache ;
+		this.batcher = batcher ;
+		this.manifest = manifest ;
+		this.overwrite = overwrite ;
+		this.quickCheckEnabled = config.getUploadSettings().isQuickCheckEnabled() ;
+		this.stopRequester = stopRequester ;
+		this.statusReporter = statusReporter ;
+		this.slots = new Semaphore (concurrency) ;
+		this.executor = Executors.newFixedThreadPool(concurrency, 
+				new ThreadFactoryBuilder().setNameFormat("drive-upload-%d").setDaemon(true).build()) ;
+		this.md5Prefetcher = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setNameFormat("drive-md5-prefetch-%d").setDaemon(true).build()) ;
+		this.reporter = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("drive-meter-%d").setDaemon(true).build()) ;
+		if (statusReporter != null) {
+			// also reported when nothing moves, so that a stalled transfer shows up as such
+			reporter.scheduleAtFixedRate(new Runnable () {
+
+				@Override
+				public void run() {
+					meter.sample();
+					reportProgress (completed.get()) ;
+					statusReporter.setThroughput(meter.getThroughput());
+					statusReporter.setEstimatedTimeRemaining(meter.getEstimatedTimeRemaining());
+				}}, reportingPeriodMillis, reportingPeriodMillis, TimeUnit.MILLISECONDS) ;
+		}
+		logger.info("Upload engine started with " + concurrency + " concurrent uploads");
+	}
+	
+	
+	/**
+	 * Notifies the engine that no more file will be submitted, so that the 
+	 * total progress can be computed against the final number of bytes.
+	 */
+	void setScanCompleted () {
+		scanCompleted = true ;
+		meter.setTotalKnown();
+		reportProgress (completed.get()) ;
+	}
+	
+	
+	/**
+	 * Schedules the upload of a file once its parent is resolved, waiting for a free slot if required.
+	 * 
+	 * @return {@code false} if a stop has been requested, in which case the file was not scheduled.
+	 * @throws InterruptedException
+	 */
+	boolean submit (final Path path, final BasicFileAttributes attr, ListenableFuture<File> driveParent) throws InterruptedException {
+		
+		Preconditions.checkNotNull(path) ;
+		Preconditions.checkNotNull(driveParent) ;
+		
+		slots.acquire();
+		if (DriveOperations.hasStopBeenRequested(stopRequester)) {
+			slots.release();
+			return false ;
+		}
+		submitted.incrementAndGet() ;
+		if (attr != null) {
+			meter.addToTotal(attr.size());
+		}
+		if (overwrite) {
+			// the hashing starts as soon as the parent is known, ahead of the upload itself
+			Futures.addCallback(driveParent, new FutureCallback<File> () {
+
+				@Override
+				public void onSuccess(File result) {
+					prefetchMd5 (path, attr, result) ;
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					// reported by the upload
+				}}, md5Prefetcher) ;
+		}
+		Futures.addCallback(driveParent, new FutureCallback<File> () {
+
+			@Override
+			public void onSuccess(File result) {
+				try {
+					upload (path, attr, result) ;
+				} finally {
+					slots.release();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				try {
+					logger.error("Error occurred while transfering the file " + path.toString (), t);
+					operationResult.setStatus (OperationCompletionStatus.ERROR) ;
+					operationResult.addError(path, new IllegalStateException ("The path " + path.toString() 
+							+ " does not have any parent in the drive (parent path " + path.getParent().toString() + ")...", t));
+				} finally {
+					slots.release();
+				}
+			}}, executor) ;
+		return true ;
+	}
+	
+	
+	private void reportProgress (int count) {
+		if (statusReporter == null || !scanCompleted) {
+			return ;
+		}
+		double progress = meter.getProgress() ;
+		if (progress < 0) {
+			// only empty files, each of them counts as one step
+			int total = submitted.get() ;
+			progress = (total == 0) ? (1.0) : (((double)count) / total) ;
+		}
+		statusReporter.setTotalProgress(progress) ;
+	}
+	
+	
+	/**
+	 * Tells whether the file is recorded in the manifest as already uploaded in its current state.
+	 * No request is issued: the Drive file is only checked against a listing already available.
+	 */
+	private boolean isUnchanged (Path path, BasicFileAttributes attr, File driveParent) {
+		if (manifest == null) {
+			return false ;
+		}
+		SyncManifest.Entry entry = manifest.get(path) ;
+		if (entry == null || !entry.isUnchanged(attr, driveParent.getId())) {
+			return false ;
+		}
+		if (listingCache != null && listingCache.isKnownMissing(driveParent, path.getFileName().toString(), entry.getDriveId())) {
+			logger.info("The file " + path.toString() + " was recorded but no longer exists in the drive");
+			return false ;
+		}
+		return true ;
+	}
+	
+	
+	/**
+	 * Starts hashing a queued file which will be compared with its remote copy, so that 
+	 * the checksum gets computed while the upload waits for its turn.
+	 */
+	private void prefetchMd5 (Path path, BasicFileAttributes attr, File driveParent) {
+		if (listingCache == null || DriveOperations.hasStopBeenRequested(stopRequester) 
+				|| isUnchanged (path, attr, driveParent)) {
+			return ;
+		}
+		try {
+			List<File> files = listingCache.findFiles(driveParent, path.getFileName().toString()) ;
+			if (files.isEmpty()) {
+				return ;
+			}
+			if (files.size() == 1 && quickCheckEnabled 
+					&& DriveOperations.quickCheck(attr, files.get(0)) != DriveOperations.QuickCheckResult.INCONCLUSIVE) {
+				// no need for the checksum
+				return ;
+			}
+			HashingService.INSTANCE.submit(path) ;
+		} catch (IOException e) {
+			// the upload itself will deal with it
+			logger.info("Could not prefetch the md5 of " + path.toString() + ": " + e.getMessage());
+		}
+	}
+	
+	
+	private void upload (Path path, BasicFileAttributes attr, File driveParent) {
+		final long size = (attr == null) ? (0) : (attr.size()) ;
+		final AtomicLong sent = new AtomicLong () ;
+		try {
+			if (DriveOperations.hasStopBeenRequested(stopRequester)) {
+				return ;
+			}
+			if (isUnchanged (path, attr, driveParent)) {
+				logger.info("The file " + path.toString() + " is unchanged since the last upload");
+				meter.addSkipped(size);
+				reportProgress (completed.incrementAndGet()) ;
+				return ;
+			}
+			if (statusReporter != null) {
+				StringBuilder sb = new StringBuilder () ;
+				sb.append("Transfering files (") ;
+				sb.append(path.getFileName().toString()) ;
+				if (attr != null) {
+					sb.append(" - size: ") ;
+					sb.append(io.uploader.drive.util.FileUtils.humanReadableByteCount(attr.size(), true)) ;
+				}
+				sb.append(")") ;
+				statusReporter.setStatus(sb.toString());
+			}
+			
+			InputStreamProgressFilter.StreamProgressCallback progressCallback = new InputStreamProgressFilter.StreamProgressCallback () {
+
+				@Override
+				public void onStreamProgress(double progress) {
+					if (statusReporter != null) {
+						statusReporter.setCurrentProgress(progress) ;
+					}
+					// a retry starts over, the bytes sent again are not accounted twice
+					long bytes = (long) (progress * size) ;
+					long previous ;
+					while ((previous = sent.get()) < bytes) {
+						if (sent.compareAndSet(previous, bytes)) {
+							meter.addSent(bytes - previous);
+							ConcurrencyController.INSTANCE.addSent(bytes - previous);
+							break ;
+						}
+					}
+				}} ;
+			DriveOperations.UploadOutcome outcome = null ;
+			ConcurrencyController.INSTANCE.acquire();
+			try {
+				if (DriveOperations.hasStopBeenRequested(stopRequester)) {
+					return ;
+				}
+				outcome = DriveOperations.uploadFile (config, operationResult, client, listingCache, batcher, driveParent, path, overwrite, progressCallback) ;
+			} finally {
+				ConcurrencyController.INSTANCE.release();
+			}
+			// a Drive file which was not compared with the local file is not recorded
+			if (manifest != null && outcome.getDriveFile() != null && outcome.isInSync()) {
+				manifest.put(path, attr, outcome.getDriveFile(), driveParent.getId());
+			}
+			// e.g., an identical copy already existed
+			meter.addSkipped(Math.max(0, size - sent.get()));
+			
+			reportProgress (completed.incrementAndGet()) ;
+			if (statusReporter != null) {
+				statusReporter.setStatus("Transfering files...");
+			}
+		} catch (Throwable e) {
+			logger.error("Error occurred while transfering the file " + path.toString (), e);
+			operationResult.setStatus (OperationCompletionStatus.ERROR) ;
+			operationResult.addError(path, e);
+		}
+	}
+	
+	
+	/**
+	 * Waits until all the scheduled uploads are finished.
+	 * 
+	 * @throws InterruptedException
+	 */
+	void awaitCompletion () throws InterruptedException {
+		slots.acquire(concurrency);
+		slots.release(concurrency);
+	}
+	
+	
+	void shutdown () {
+		reporter.shutdownNow() ;
+		md5Prefetcher.shutdownNow() ;
+		if (statusReporter != null) {
+			statusReporter.setThroughput(-1.0);
+			statusReporter.setEstimatedTimeRemaining(-1);
+		}
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
+				executor.shutdownNow() ;
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow() ;
+			Thread.currentThread().interrupt();
+		}
+	}
+}
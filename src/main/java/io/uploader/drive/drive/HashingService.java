@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Computes the MD5 checksums of local files on a dedicated thread pool.
+ * 
+ * <p>
+ * Files can be hashed ahead of time (see {@link #submit(Path)}), so that the checksum is 
+ * ready by the time the uploader needs it, hashing thereby overlapping with the network 
+ * transfers. Files are read through memory-mapped windows of a {@link FileChannel}. The 
+ * pending and recent results are kept as long as the size and the last modified time of 
+ * the file do not change.
+ * </p>
+ */
+public enum HashingService {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(HashingService.class);
+	
+	private static final long mappingWindowSize = 64L * 1024 * 1024 ;
+	private static final int smallFileSize = 1024 * 1024 ;
+	private static final int maxCachedResults = 1024 ;
+	
+	private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+			new ThreadFactoryBuilder().setNameFormat("drive-hash-%d").setDaemon(true).build())) ;
+	
+	private final Cache<String, ListenableFuture<String>> results = CacheBuilder.newBuilder()
+			.maximumSize(maxCachedResults).build() ;
+	
+	
+	private static String getKey (Path path, BasicFileAttributes attr) {
+		return path.toAbsolutePath().toString() + "|" + attr.size() + "|" + attr.lastModifiedTime().toMillis() ;
+	}
+	
+	
+	/**
+	 * Schedules the hashing of the given file, unless already done or scheduled.
+	 * 
+	 * @return the future checksum.
+	 * @throws IOException
+	 */
+	public ListenableFuture<String> submit (final Path path) throws IOException {
+		Preconditions.checkNotNull(path) ;
+		BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class) ;
+		try {
+			return results.get(getKey (path, attr), new Callable<ListenableFuture<String>> () {
+
+				@Override
+				public ListenableFuture<String> call() {
+					return executor.submit(new Callable<String> () {
+
+						@Override
+						public String call() throws Exception {
+							return computeMd5 (path) ;
+						}}) ;
+				}}) ;
+		} catch (ExecutionException e) {
+			throw new IOException (e.getCause()) ;
+		}
+	}
+	
+	
+	/**
+	 * Returns the checksum of the given file, waiting for it to be computed if required.
+	 * 
+	 * @throws IOException
+	 */
+	public String getMd5 (Path path) throws IOException {
+		ListenableFuture<String> future = submit (path) ;
+		try {
+			return future.get() ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException ("Interrupted while hashing " + path.toString(), e) ;
+		} catch (ExecutionException e) {
+			logger.error("Error occurred while hashing " + path.toString(), e.getCause());
+			// do not keep the failure
+			results.asMap().values().remove(future) ;
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause() ;
+			}
+			throw new IOException (e.getCause()) ;
+		}
+	}
+	
+	
+	static String computeMd5 (Path path) throws IOException {
+		MessageDigest digest = DigestUtils.getMd5Digest() ;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size() ;
+			if (size <= smallFileSize) {
+				// not worth a mapping
+				ByteBuffer buffer = ByteBuffer.allocate((int) size) ;
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break ;
+					}
+				}
+				buffer.flip() ;
+				digest.update(buffer) ;
+			} else {
+				long position = 0 ;
+				while (position < size) {
+					long length = Math.min(mappingWindowSize, size - position) ;
+					MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, position, length) ;
+					digest.update(buffer) ;
+					position += length ;
+				}
+			}
+		}
+		return Hex.encodeHexString(digest.digest()) ;
+	}
+}
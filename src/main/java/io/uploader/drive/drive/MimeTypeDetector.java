@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.tika.Tika;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Thread-safe detection of the MIME type of local files.
+ * 
+ * <p>
+ * The type is first resolved from the extension of the file: a table of the common 
+ * extensions is computed once, and the other extensions are resolved and cached on 
+ * demand. Only when the extension is unknown (or missing) is the content sniffed, 
+ * reading a small bounded header; these results are cached by extension and signature 
+ * (i.e., the first bytes of the file).
+ * </p>
+ */
+public enum MimeTypeDetector {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(MimeTypeDetector.class);
+	
+	private static final String unknownType = "application/octet-stream" ;
+	private static final int headerSize = 8 * 1024 ;
+	private static final int signatureSize = 16 ;
+	private static final int maxCachedSignatures = 4096 ;
+	
+	// the Tika facade is thread-safe
+	private final Tika tika = new Tika () ;
+	private final ConcurrentMap<String, String> typesByExtension = new ConcurrentHashMap<String, String> () ;
+	private final Cache<String, String> typesBySignature = CacheBuilder.newBuilder().maximumSize(maxCachedSignatures).build() ;
+	
+	private MimeTypeDetector () {
+		// the static fields are not yet initialised when the enum constant is built
+		final List<String> commonExtensions = Arrays.asList(
+				"txt", "csv", "htm", "html", "css", "js", "json", "xml", "java", "c", "h", "cpp", "py", "sh", "properties",
+				"pdf", "rtf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "odt", "ods", "odp",
+				"jpg", "jpeg", "png", "gif", "bmp", "tif", "tiff", "svg", "ico", "psd",
+				"mp3", "wav", "ogg", "flac", "m4a", "mp4", "m4v", "avi", "mov", "mkv", "wmv", "mpg", "mpeg",
+				"zip", "gz", "tgz", "bz2", "7z", "rar", "tar", "jar", "war", "class", "exe", "dll", "iso", "dmg") ;
+		for (String extension : commonExtensions) {
+			typesByExtension.put(extension, tika.detect("file." + extension)) ;
+		}
+	}
+	
+	
+	private static String getExtension (String filename) {
+		int index = filename.lastIndexOf('.') ;
+		if (index <= 0 || index == filename.length() - 1) {
+			return "" ;
+		}
+		return filename.substring(index + 1).toLowerCase(Locale.ENGLISH) ;
+	}
+	
+	
+	/**
+	 * Detects the MIME type of the given file.
+	 * 
+	 * @return the MIME type, or {@code null} if it cannot be determined.
+	 */
+	public String detect (Path path) {
+		if (path == null) {
+			return null ;
+		}
+		final String filename = path.getFileName().toString() ;
+		final String extension = getExtension (filename) ;
+		if (!extension.isEmpty()) {
+			String type = typesByExtension.get(extension) ;
+			if (type == null) {
+				type = tika.detect(filename) ;
+				typesByExtension.putIfAbsent(extension, type) ;
+			}
+			if (!unknownType.equals(type)) {
+				return type ;
+			}
+		}
+		try {
+			final byte[] header = readHeader (path) ;
+			String signature = extension + ":" + Hex.encodeHexString(Arrays.copyOf(header, Math.min(signatureSize, header.length))) ;
+			return typesBySignature.get(signature, new Callable<String> () {
+
+				@Override
+				public String call() {
+					return tika.detect(header, filename) ;
+				}}) ;
+		} catch (IOException | ExecutionException e) {
+			logger.error ("Error occurred while attempting to determine the mine type of " + path.toString(), e) ;
+			return null ;
+		}
+	}
+	
+	
+	private static byte[] readHeader (Path path) throws IOException {
+		byte[] buffer = new byte[headerSize] ;
+		int length = 0 ;
+		try (InputStream in = Files.newInputStream(path)) {
+			int r ;
+			while (length < buffer.length && (r = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += r ;
+			}
+		}
+		return (length == buffer.length) ? (buffer) : (Arrays.copyOf(buffer, length)) ;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persistent record of the files already synchronized by a given task (i.e., a given 
+ * source directory and a given Drive destination directory).
+ * 
+ * <p>
+ * Each entry holds the size and the last modified time of the local file when it was 
+ * uploaded, along with the MD5 checksum (if any) and the ID of the Drive file. A file whose size 
+ * and modification time did not change since it was recorded can be skipped without any 
+ * network call or hashing. The manifest is an append-only log (one line per entry, the 
+ * last one winning) which is compacted when opened, so that an interrupted run loses at 
+ * most the entries that were not yet flushed.
+ * </p>
+ */
+class SyncManifest {
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncManifest.class);
+	
+	private static final String separator = "\t" ;
+	private static final int numberOfFields = 6 ;
+	
+	static class Entry {
+		
+		private final long size ;
+		private final long lastModified ;
+		private final String md5 ;
+		private final String driveId ;
+		private final String driveParentId ;
+		
+		Entry(long size, long lastModified, String md5, String driveId, String driveParentId) {
+			super();
+			this.size = size;
+			this.lastModified = lastModified;
+			this.md5 = md5;
+			this.driveId = driveId;
+			this.driveParentId = driveParentId;
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		long getLastModified() {
+			return lastModified;
+		}
+
+		String getMd5() {
+			return md5;
+		}
+
+		String getDriveId() {
+			return driveId;
+		}
+
+		String getDriveParentId() {
+			return driveParentId;
+		}
+		
+		boolean isUnchanged (BasicFileAttributes attr, String parentId) {
+			return attr != null 
+					&& attr.size() == size 
+					&& attr.lastModifiedTime().toMillis() == lastModified 
+					&& driveParentId.equals(parentId) ;
+		}
+	}
+	
+	private final Path manifestPath ;
+	private final Path srcDir ;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry> () ;
+	private Writer writer = null ;
+	
+	private SyncManifest (Path manifestPath, Path srcDir) {
+		super () ;
+		this.manifestPath = manifestPath ;
+		this.srcDir = srcDir ;
+	}
+	
+	
+	/**
+	 * Opens (or creates) the manifest of the task uploading srcDir into the Drive directory driveDestId.
+	 */
+	static SyncManifest open (String dataStoreDirectory, Path srcDir, String driveDestId) throws IOException {
+		
+		Preconditions.checkNotNull(dataStoreDirectory) ;
+		Preconditions.checkNotNull(srcDir) ;
+		Preconditions.checkNotNull(driveDestId) ;
+		
+		String key = Hashing.md5().hashString(srcDir.toAbsolutePath().toString() + "\n" + driveDestId, StandardCharsets.UTF_8).toString() ;
+		Path dir = Paths.get(dataStoreDirectory, "manifests") ;
+		Files.createDirectories(dir) ;
+		SyncManifest manifest = new SyncManifest (dir.resolve(key + ".manifest"), srcDir) ;
+		manifest.load() ;
+		manifest.compact() ;
+		manifest.writer = new BufferedWriter (new OutputStreamWriter (Files.newOutputStream(manifest.manifestPath, 
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8)) ;
+		logger.info("Sync manifest " + manifest.manifestPath + " (" + manifest.entries.size() + " entries)");
+		return manifest ;
+	}
+	
+	
+	private void load () throws IOException {
+		if (!Files.exists(manifestPath)) {
+			return ;
+		}
+		try (BufferedReader in = new BufferedReader (new InputStreamReader (Files.newInputStream(manifestPath), StandardCharsets.UTF_8))) {
+			String line ;
+			while ((line = in.readLine()) != null) {
+				// the path comes last, so that it may contain the separator
+				String[] fields = line.split(separator, numberOfFields) ;
+				if (fields.length != numberOfFields) {
+					// most likely a truncated line due to an interruption
+					continue ;
+				}
+				try {
+					entries.put(fields[5], new Entry (Long.parseLong(fields[0]), Long.parseLong(fields[1]), 
+							(fields[2].isEmpty()) ? (null) : (fields[2]), fields[3], fields[4])) ;
+				} catch (NumberFormatException e) {
+					logger.info("Ignore ill-formed manifest line: " + line);
+				}
+			}
+		}
+	}
+	
+	
+	private void compact () throws IOException {
+		Path tmp = manifestPath.resolveSibling(manifestPath.getFileName().toString() + ".tmp") ;
+		try (Writer out = new BufferedWriter (new OutputStreamWriter (Files.newOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				write (out, entry.getKey(), entry.getValue()) ;
+			}
+		}
+		Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE) ;
+	}
+	
+	
+	private static void write (Writer out, String key, Entry entry) throws IOException {
+		StringBuilder sb = new StringBuilder () ;
+		sb.append(entry.getSize()).append(separator) ;
+		sb.append(entry.getLastModified()).append(separator) ;
+		// an empty field for the files without checksum (e.g., Google documents)
+		sb.append((entry.getMd5() == null) ? ("") : (entry.getMd5())).append(separator) ;
+		sb.append(entry.getDriveId()).append(separator) ;
+		sb.append(entry.getDriveParentId()).append(separator) ;
+		sb.append(key).append("\n") ;
+		out.write(sb.toString());
+	}
+	
+	
+	private String getKey (Path path) {
+		return srcDir.relativize(path).toString() ;
+	}
+	
+	
+	Entry get (Path path) {
+		return entries.get(getKey (path)) ;
+	}
+	
+	
+	/**
+	 * Records a file that is now synchronized with the given Drive file.
+	 */
+	void put (Path path, BasicFileAttributes attr, com.google.api.services.drive.model.File driveFile, String driveParentId) {
+		if (attr == null || driveFile == null || driveParentId == null) {
+			return ;
+		}
+		String key = getKey (path) ;
+		if (key.contains("\n")) {
+			return ;
+		}
+		Entry entry = new Entry (attr.size(), attr.lastModifiedTime().toMillis(), 
+				driveFile.getMd5Checksum(), driveFile.getId(), driveParentId) ;
+		entries.put(key, entry) ;
+		synchronized (this) {
+			if (writer == null) {
+				return ;
+			}
+			try {
+				write (writer, key, entry) ;
+			} catch (IOException e) {
+				logger.error("Error occurred while writing the sync manifest", e);
+			}
+		}
+	}
+	
+	
+	synchronized void close () {
+		if (writer == null) {
+			return ;
+		}
+		try {
+			writer.close();
+			writer = null ;
+			compact () ;
+		} catch (IOException e) {
+			logger.error("Error occurred while closing the sync manifest", e);
+		}
+	}
+}
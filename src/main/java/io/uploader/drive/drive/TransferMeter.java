@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-level accounting of an upload task.
+ * 
+ * <p>
+ * The total is the sum of the sizes of the files found by the walk, and the progress is 
+ * the number of bytes done over that total, so that each file weighs according to its 
+ * size. Only the bytes actually sent are taken into account in the throughput, which is 
+ * an exponential moving average sampled at regular intervals, so that it drops towards 
+ * zero when the transfer stalls. The files that did not need to be sent (e.g., unchanged 
+ * files) only count in the progress.
+ * </p>
+ */
+class TransferMeter {
+
+	private static final double smoothingFactor = 0.3 ;
+	
+	private final AtomicLong totalBytes = new AtomicLong () ;
+	private final AtomicLong doneBytes = new AtomicLong () ;
+	private final AtomicLong sentBytes = new AtomicLong () ;
+	private volatile boolean totalKnown = false ;
+	
+	// guarded by this
+	private long lastSampleTime ;
+	private long lastSampleBytes = 0 ;
+	private double throughput = -1.0 ;
+	
+	TransferMeter () {
+		super () ;
+		lastSampleTime = System.nanoTime() ;
+	}
+	
+	
+	void addToTotal (long bytes) {
+		totalBytes.addAndGet(bytes) ;
+	}
+	
+	
+	/**
+	 * Notifies that all the files have been accounted for in the total.
+	 */
+	void setTotalKnown () {
+		totalKnown = true ;
+	}
+	
+	
+	boolean isTotalKnown () {
+		return totalKnown ;
+	}
+	
+	
+	/**
+	 * Records bytes that have just been sent.
+	 */
+	void addSent (long bytes) {
+		sentBytes.addAndGet(bytes) ;
+		doneBytes.addAndGet(bytes) ;
+	}
+	
+	
+	/**
+	 * Records bytes that are done without having been sent.
+	 */
+	void addSkipped (long bytes) {
+		doneBytes.addAndGet(bytes) ;
+	}
+	
+	
+	long getTotalBytes () {
+		return totalBytes.get() ;
+	}
+	
+	
+	/**
+	 * @return the fraction of the bytes done, or a negative value if the total is zero.
+	 */
+	double getProgress () {
+		long total = totalBytes.get() ;
+		if (total <= 0) {
+			return -1.0 ;
+		}
+		return Math.min(1.0, ((double)doneBytes.get()) / total) ;
+	}
+	
+	
+	/**
+	 * Updates the moving average of the throughput with the bytes sent since the previous sample.
+	 */
+	synchronized void sample () {
+		long now = System.nanoTime() ;
+		long elapsed = now - lastSampleTime ;
+		if (elapsed <= 0) {
+			return ;
+		}
+		long sent = sentBytes.get() ;
+		double instant = (sent - lastSampleBytes) / (((double)elapsed) / TimeUnit.SECONDS.toNanos(1)) ;
+		throughput = (throughput < 0) ? (instant) : (smoothingFactor * instant + (1.0 - smoothingFactor) * throughput) ;
+		lastSampleTime = now ;
+		lastSampleBytes = sent ;
+	}
+	
+	
+	/**
+	 * @return the average throughput in bytes per second, or a negative value if not yet sampled.
+	 */
+	synchronized double getThroughput () {
+		return throughput ;
+	}
+	
+	
+	/**
+	 * @return the estimated remaining time in seconds, or a negative value if it cannot be estimated.
+	 */
+	synchronized long getEstimatedTimeRemaining () {
+		if (!totalKnown || throughput <= 0) {
+			return -1 ;
+		}
+		long remaining = Math.max(0, totalBytes.get() - doneBytes.get()) ;
+		return (long) Math.ceil(remaining / throughput) ;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Entity whose content is the remaining bytes of a (possibly direct) byte buffer. The 
+ * buffer itself is never modified, so the entity is repeatable.
+ */
+class ByteBufferEntity extends AbstractHttpEntity {
+
+	private final ByteBuffer buffer ;
+	
+	public ByteBufferEntity (ByteBuffer buffer) {
+		super () ;
+		this.buffer = Preconditions.checkNotNull(buffer).slice() ;
+		setContentType("application/octet-stream") ;
+	}
+	
+	
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	
+	@Override
+	public long getContentLength() {
+		return buffer.remaining();
+	}
+
+	
+	@Override
+	public InputStream getContent() throws IOException {
+		final ByteBuffer content = buffer.duplicate() ;
+		return new InputStream () {
+
+			@Override
+			public int read() throws IOException {
+				return (content.hasRemaining()) ? (content.get() & 0xff) : (-1) ;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0 ;
+				}
+				if (!content.hasRemaining()) {
+					return -1 ;
+				}
+				int r = Math.min(len, content.remaining()) ;
+				content.get(b, off, r) ;
+				return r ;
+			}
+		} ;
+	}
+
+	
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		Preconditions.checkNotNull(outstream) ;
+		Channels.newChannel(outstream).write(buffer.duplicate()) ;
+		outstream.flush() ;
+	}
+
+	
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
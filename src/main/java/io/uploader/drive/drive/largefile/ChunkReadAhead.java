@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.uploader.drive.drive.ChunkBufferPool;
+
+/**
+ * Reads the next chunk of a resumable upload on an I/O thread while the current one is 
+ * being sent, so that the disk and the network work in parallel.
+ * 
+ * <p>
+ * At most one chunk is read ahead (double buffering), into a buffer borrowed from the 
+ * {@link ChunkBufferPool}. When no buffer is available, when the read fails, or when the 
+ * server acknowledged fewer bytes than sent (so that the next chunk does not start where 
+ * expected), no chunk is handed over and the caller falls back to streaming from the file. 
+ * An instance covers a single upload and must be closed.
+ * </p>
+ */
+class ChunkReadAhead implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkReadAhead.class);
+	
+	private static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("drive-readahead-%d").setDaemon(true).build())) ;
+	
+	/**
+	 * Chunk read ahead of time.
+	 */
+	static class Chunk {
+		
+		private final long position ;
+		private final ByteBuffer buffer ;
+		
+		private Chunk (long position, ByteBuffer buffer) {
+			super () ;
+			this.position = position ;
+			this.buffer = buffer ;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the content of the chunk, between the position and the limit of the buffer
+		 */
+		public ByteBuffer getBuffer() {
+			return buffer;
+		}
+		
+		public int getLength () {
+			return buffer.remaining() ;
+		}
+	}
+	
+	private final FileChannel channel ;
+	private ListenableFuture<Chunk> pending = null ;
+	
+	
+	public ChunkReadAhead (FileChannel channel) {
+		super () ;
+		this.channel = channel ;
+	}
+	
+	
+	/**
+	 * Starts reading the chunk at the given position, unless a chunk is already pending.
+	 */
+	public void prefetch (final long position, final int length) {
+		if (pending != null || length <= 0) {
+			return ;
+		}
+		pending = executor.submit(new Callable<Chunk> () {
+
+			@Override
+			public Chunk call() throws Exception {
+				ByteBuffer buffer = ChunkBufferPool.INSTANCE.tryAcquire(length) ;
+				if (buffer == null) {
+					logger.debug("No buffer available for reading ahead");
+					return null ;
+				}
+				try {
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, position + buffer.position()) < 0) {
+							break ;
+						}
+					}
+					buffer.flip() ;
+					return new Chunk (position, buffer) ;
+				} catch (IOException | RuntimeException e) {
+					ChunkBufferPool.INSTANCE.release(buffer) ;
+					throw e ;
+				}
+			}}) ;
+	}
+	
+	
+	private Chunk waitForPending () {
+		if (pending == null) {
+			return null ;
+		}
+		try {
+			return pending.get() ;
+		} catch (ExecutionException e) {
+			logger.warn("Error occurred while reading ahead", e.getCause());
+			return null ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// the read cannot be awaited, the buffer (if any) is given back once it completes
+			Futures.addCallback(pending, new FutureCallback<Chunk> () {
+
+				@Override
+				public void onSuccess(Chunk chunk) {
+					release (chunk) ;
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+				}}) ;
+			return null ;
+		} finally {
+			pending = null ;
+		}
+	}
+	
+	
+	/**
+	 * Returns the chunk read ahead if it starts at the given position, {@code null} otherwise 
+	 * (in which case the caller reads from the file itself). The returned chunk must be 
+	 * released once sent.
+	 */
+	public Chunk take (long position) {
+		Chunk chunk = waitForPending () ;
+		if (chunk != null && (chunk.getPosition() != position || chunk.getLength() == 0)) {
+			logger.info("The chunk read ahead does not start at " + position + ", it is discarded");
+			release (chunk) ;
+			return null ;
+		}
+		return chunk ;
+	}
+	
+	
+	public void release (Chunk chunk) {
+		if (chunk != null) {
+			ChunkBufferPool.INSTANCE.release(chunk.getBuffer()) ;
+		}
+	}
+
+
+	@Override
+	public void close() {
+		release (waitForPending ()) ;
+	}
+}
@@ -31,124 +31,45 @@
 package io.uploader.drive.drive.largefile;
 
 import io.uploader.drive.config.HasConfiguration;
-import io.uploader.drive.config.proxy.HasProxySettings;
+import io.uploader.drive.drive.AccessTokenManager;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONObject;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
 
+/**
+ * Authorization of the requests of the large file engine. The token is the one of the 
+ * Drive client, held (and refreshed ahead of its expiry) by the {@link AccessTokenManager}.
+ */
 public class DriveAuth {
 	
-    private static final Logger logger = LoggerFactory.getLogger(DriveAuth.class);
+    // last token handed out
+    private volatile String accessToken = null ;
     
-    private final String clientId;
-    private final String clientSecret;
-    private String accessToken = "" ;
-    private String tokenType = "" ;
-    private String refreshToken = "" ;
-
-    private final int maxRetries = 3;
     
-    private final HasConfiguration config ;
-    private final HasProxySettings proxySetting ;
-
-
     public DriveAuth(HasConfiguration config) throws IOException {
-        this(true, config);
-    }
-
-    
-    public DriveAuth(boolean useOldApi, HasConfiguration config) throws IOException {
     	super () ;
-    	this.config = Preconditions.checkNotNull(config) ;
-    	this.proxySetting = config.getHttpProxySettings() ;
-
-        clientSecret = config.getAuthenticationSettings().getClientSecret();
-        clientId = config.getAuthenticationSettings().getClientId();
-        config.getAuthenticationSettings().getCallBackUrl();
-        refreshToken = config.getCredential().getRefreshToken() ;
-
-        int retry = 0;
-        boolean tokensOK = false;
-        while (!tokensOK && retry < maxRetries) {
-            tokensOK = updateAccessToken();
-            ++retry;
-        }
-        if (!tokensOK) {
-        	logger.info("Authentication aborted after " + maxRetries + " retries.");
-            throw new IllegalStateException () ;
-        }
-    }
-
-    
-    private CloseableHttpClient getHttpClient () {
-    	return HttpClientUtils.getHttpClient(proxySetting) ;
+    	Preconditions.checkNotNull(config) ;
+    	AccessTokenManager.INSTANCE.manage(Preconditions.checkNotNull(config.getCredential())) ;
     }
     
 
-    public String getAccessToken() {
+    public String getAccessToken() throws IOException {
+    	accessToken = AccessTokenManager.INSTANCE.getAccessToken() ;
         return accessToken;
     }
 
     
-    public String getAuthHeader() {
-        return tokenType + " " + accessToken;
+    public String getAuthHeader() throws IOException {
+        return "Bearer " + getAccessToken();
     }
 
     
-    public boolean updateAccessToken() throws UnsupportedEncodingException, IOException {
-        // If a refresh_token is set, this class tries to retrieve an access_token.
-        // If refresh_token is no longer valid it resets all tokens to an empty string.
-        if (refreshToken.isEmpty() || accessToken.isEmpty()) {
-            accessToken = config.getCredential().getAccessToken();
-            tokenType = "";
-            refreshToken = config.getCredential().getRefreshToken();
-        }
-        logger.info("Updating access_token from Google");
-        CloseableHttpClient httpclient = getHttpClient () ;
-        HttpPost httpPost = new HttpPost("https://accounts.google.com/o/oauth2/token");
-        List<NameValuePair> nvps = new ArrayList<NameValuePair>();
-        nvps.add(new BasicNameValuePair("client_id", clientId));
-        nvps.add(new BasicNameValuePair("client_secret", clientSecret));
-        nvps.add(new BasicNameValuePair("refresh_token", refreshToken));
-        nvps.add(new BasicNameValuePair("grant_type", "refresh_token"));
-        BufferedHttpEntity postentity = new BufferedHttpEntity(new UrlEncodedFormEntity(nvps));
-        httpPost.setEntity(postentity);
-        CloseableHttpResponse response = httpclient.execute(httpPost);
-        BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-        EntityUtils.consume(response.getEntity());
-        boolean tokensOK = false;
-        try {
-            if (response.getStatusLine().getStatusCode() == 200 && entity != null) {
-                String retSrc = EntityUtils.toString(entity);
-                JSONObject result = new JSONObject(retSrc);
-                accessToken = result.getString("access_token");
-                tokenType = result.getString("token_type");
-                tokensOK = true;
-            }
-        } finally {
-            response.close();
-        }
-        httpclient.close();
-        if (!tokensOK) {
-            refreshToken = "";
-            accessToken = "";
-            tokenType = "";
-        }
-        return tokensOK;
+    /**
+     * Called when the last token handed out has been rejected.
+     */
+    public boolean updateAccessToken() throws IOException {
+    	accessToken = AccessTokenManager.INSTANCE.onRejected(accessToken) ;
+        return accessToken != null;
     }
 }
@@ -30,38 +30,37 @@ package io.uploader.drive.drive.largefile;
 
 import io.uploader.drive.config.proxy.HasProxySettings;
 import io.uploader.drive.drive.DriveUtils;
-import io.uploader.drive.drive.DriveUtils.HasDescription;
-import io.uploader.drive.drive.DriveUtils.HasId;
-import io.uploader.drive.drive.DriveUtils.HasMimeType;
-import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
 
 import java.net.URI;
+import java.net.URLEncoder;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpRequest;
-import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
-import org.json.XML;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.File;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.net.URISyntaxException;
 
 public class DriveResumableUpload {
@@ -72,132 +71,82 @@ public class DriveResumableUpload {
     private final long fileSize;
     private final String location;
     private final URI uri;
-    private final boolean useOldApi;
     private final HasProxySettings proxySetting ;
+    
+    // state of the upload, as given by the last response of the server
+    private long acknowledgedByte = -1 ;
+    private String completedResponse = null ;
 
+	/**
+	 * Resumable upload through the Drive v2 endpoint. The metadata are sent along with the 
+	 * initiation request (including the modification date, if any), and the resource of the 
+	 * file comes with the response to the last chunk.
+	 * 
+	 * @param fileId the file to update, or {@code null} to insert a new file
+	 */
 	public DriveResumableUpload(HasProxySettings proxySetting, DriveAuth auth,
-			String uploadLocation, String title, HasDescription description,
-			HasId parentId, HasMimeType mimeType, String filename,
-			long fileSize,
-			InputStreamProgressFilter.StreamProgressCallback progressCallback)
+			String uploadLocation, DriveUtils.HasId fileId, File metadata, long fileSize) 
 			throws IOException, URISyntaxException {
 		
-		this.auth = auth ; 
+		this.auth = auth ;
 		
         this.fileSize = fileSize;
-        this.useOldApi = true;
         this.proxySetting = proxySetting ;
         if (org.apache.commons.lang3.StringUtils.isEmpty(uploadLocation)) {
-        	this.location = createResumableUpload(title, description, parentId, mimeType);
+        	this.location = createResumableUpload(fileId, Preconditions.checkNotNull(metadata));
+        	// nothing has been sent yet
+        	this.acknowledgedByte = 0 ;
         } else {
         	this.location = uploadLocation;
         }
         Preconditions.checkState(StringUtils.isNotEmpty(this.location));
         URIBuilder urib = new URIBuilder(location);
         uri = urib.build();
-        //logger.info("URI: " + uri.toASCIIString());
-    }
+	}
 	
 	
-	public DriveResumableUpload(HasProxySettings proxySetting, DriveAuth auth, String uploadLocation, DriveUtils.HasId fileId, HasMimeType mimeType, String filename,
-			long fileSize,
-			InputStreamProgressFilter.StreamProgressCallback progressCallback)
-			throws IOException, URISyntaxException {
-		
-		this.auth = auth;
-
-        this.useOldApi = true;
-        this.fileSize = fileSize;
-        this.proxySetting = proxySetting ;
-        if (org.apache.commons.lang3.StringUtils.isEmpty(uploadLocation)) {
-        	this.location = createResumableUploadUpdate(fileId, mimeType);
-        } else {
-        	this.location = uploadLocation;
-        }
-        Preconditions.checkState(StringUtils.isNotEmpty(this.location));
-        URIBuilder urib = new URIBuilder(location);
-        uri = urib.build();
-        //logger.info("URI: " + uri.toASCIIString());
+    /**
+     * @return the body of the response of the server once the upload is complete; it is 
+     * taken from the response to the last chunk, the server is only queried if it has not 
+     * been received yet (e.g., an upload resumed after completion).
+     */
+    private String getCompletedResponse() throws IOException {
+    	if (completedResponse == null) {
+    		logger.info("Querying metadata of completed upload...");
+    		getCurrentByte () ;
+    	}
+    	if (completedResponse == null) {
+    		throw new IOException ("The upload is not complete") ;
+    	}
+    	return completedResponse ;
     }
-	
-	
+    
+    
     public String getFileId() throws IOException {
-    	logger.info("Querying file id of completed upload...");
-    	CloseableHttpClient httpclient = null ;
-    	CloseableHttpResponse response = null ;
-    	try {
-	    	httpclient = getHttpClient () ;
-	        BasicHttpRequest httpreq = new BasicHttpRequest("PUT", location);
-	        httpreq.addHeader("Authorization", auth.getAuthHeader());
-	        httpreq.addHeader("Content-Length", "0");
-	        httpreq.addHeader("Content-Range", "bytes */" + getFileSizeString());
-	        response = httpclient.execute(URIUtils.extractHost(uri), httpreq);
-	        BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-	        String retSrc = EntityUtils.toString(entity);
-	        if (useOldApi) {
-	            // Old API will return XML!
-	            JSONObject result = XML.toJSONObject(retSrc);
-	            return result.getJSONObject("entry").getString("gd:resourceId").replace("file:", "") ;
-	        } else {
-	            JSONObject result = new JSONObject(retSrc);
-	            return result.getString("id") ;
-	        }
-        } finally {
-        	if (response != null) {
-        		response.close();
-        	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
-        }
+    	JSONObject result = new JSONObject(getCompletedResponse ());
+    	return result.getString("id") ;
     }
 	
 
+    /**
+     * @return the resource of the uploaded file
+     */
+    public File getFile() throws IOException {
+    	String retSrc = getCompletedResponse () ;
+    	return JacksonFactory.getDefaultInstance().fromString(retSrc, File.class) ;
+    }
+    
+
     public boolean checkMD5(String md5) throws IOException {
-    	logger.info("Querying metadata of completed upload...");
-    	
     	Preconditions.checkState(org.apache.commons.lang3.StringUtils.isNotEmpty(md5)) ;
     	
-    	CloseableHttpClient httpclient = null ;
-    	CloseableHttpResponse response = null ;
-    	try {
-	    	httpclient = getHttpClient () ;
-	        BasicHttpRequest httpreq = new BasicHttpRequest("PUT", location);
-	        httpreq.addHeader("Authorization", auth.getAuthHeader());
-	        httpreq.addHeader("Content-Length", "0");
-	        httpreq.addHeader("Content-Range", "bytes */" + getFileSizeString());
-	        response = httpclient.execute(URIUtils.extractHost(uri), httpreq);
-	        BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-	        String retSrc = EntityUtils.toString(entity);
-	        String driveMd5 = null ;
-	        if (useOldApi) {
-	            // Old API will return XML!
-	            JSONObject result = XML.toJSONObject(retSrc);
-	            logger.info("id          : " + result.getJSONObject("entry").getString("gd:resourceId").replace("file:", ""));
-	            logger.info("title       : " + result.getJSONObject("entry").getString("title"));
-	            logger.info("link        : " + result.getJSONObject("entry").getJSONArray("link").getJSONObject(0).getString("href"));
-	            logger.info("md5Checksum : " + result.getJSONObject("entry").getString("docs:md5Checksum"));
-	            driveMd5 = result.getJSONObject("entry").getString("docs:md5Checksum") ;
-	        } else {
-	            JSONObject result = new JSONObject(retSrc);
-	            logger.info("id          : " + result.getString("id"));
-	            logger.info("title       : " + result.getString("title"));
-	            logger.info("link        : " + result.getString("webContentLink"));
-	            logger.info("md5Checksum : " + result.getString("md5Checksum"));
-	            driveMd5 = result.getString("md5Checksum") ;
-	        }
-	        // verify the consistency of the md5 values
-	        return md5.equals(driveMd5) ;
-        } finally {
-        	if (response != null) {
-        		response.close();
-        	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
-        }
+        JSONObject result = new JSONObject(getCompletedResponse ());
+        logger.info("id          : " + result.getString("id"));
+        logger.info("title       : " + result.getString("title"));
+        logger.info("md5Checksum : " + result.optString("md5Checksum"));
+        String driveMd5 = result.optString("md5Checksum", null) ;
+        // verify the consistency of the md5 values
+        return md5.equals(driveMd5) ;
     }
     
 
@@ -214,6 +163,7 @@ public class DriveResumableUpload {
     }
     
     
+    // shared client, it must not be closed
     private CloseableHttpClient getHttpClient () {
     	return HttpClientUtils.getHttpClient(proxySetting) ;
     }
@@ -233,36 +183,85 @@ public class DriveResumableUpload {
 	        httpreq.addHeader("Content-Range", "bytes */" + getFileSizeString());
 	        //logger.info(httpreq.toString());
 	        response = httpclient.execute(URIUtils.extractHost(uri), httpreq);
-	        @SuppressWarnings("unused")
-			BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-            if (response.getStatusLine().getStatusCode() == 200 || response.getStatusLine().getStatusCode() == 201) {
-                lastbyte = fileSize;
-            }
-            if (response.getStatusLine().getStatusCode() == 308) {
-                if (response.getHeaders("Range").length > 0) {
-                    String range = response.getHeaders("Range")[0].getValue();
-                    String[] parts = range.split("-");
-                    lastbyte = Long.parseLong(parts[1]) + 1;
-                } else {
-                    // nothing uploaded, but file is there to start upload!
-                    lastbyte = 0;
-                }
-            }
+	        updateState (response) ;
+	        lastbyte = acknowledgedByte ;
             return lastbyte;
         } finally {
         	if (response != null) {
+        		// the connection goes back to the pool once the entity is consumed
+        		EntityUtils.consumeQuietly(response.getEntity());
         		response.close();
         	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
         }
     }
     
 
+    /**
+     * Reads the state of the upload from a response of the server: the range acknowledged 
+     * so far (308 RESUME INCOMPLETE) or the metadata of the uploaded file (200 or 201).
+     * 
+     * @return the status code
+     */
+    private int updateState (CloseableHttpResponse response) throws IOException {
+    	BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
+    	EntityUtils.consume(response.getEntity());
+    	int status = response.getStatusLine().getStatusCode() ;
+    	if (status == 200 || status == 201) {
+    		acknowledgedByte = fileSize ;
+    		completedResponse = EntityUtils.toString(entity) ;
+    	} else if (status == 308) {
+    		if (response.getHeaders("Range").length > 0) {
+    			String range = response.getHeaders("Range")[0].getValue();
+    			String[] parts = range.split("-");
+    			acknowledgedByte = Long.parseLong(parts[1]) + 1;
+    		} else {
+    			// nothing uploaded, but file is there to start upload!
+    			acknowledgedByte = 0;
+    		}
+    	} else {
+    		acknowledgedByte = -1 ;
+    	}
+    	return status ;
+    }
+    
+    
+    /**
+     * @return the index of the next byte the server expects, as given by the last response 
+     * (without querying the server), or -1 if unknown (e.g., after an error)
+     */
+    public long getAcknowledgedByte() {
+    	return acknowledgedByte ;
+    }
+    
+
     public int uploadChunk(byte[] bytecontent, long start_range, int bytes_in_array) throws IOException {
     	
+    	return uploadChunk(new ByteArrayEntity(bytecontent, 0, bytes_in_array), start_range, bytes_in_array) ;
+    }
+    
+    
+    /**
+     * Uploads the region of the file starting at the given position; the bytes are streamed 
+     * from the channel, no buffer of the size of the chunk is allocated.
+     */
+    public int uploadChunk(FileChannel channel, long start_range, int bytes_in_chunk) throws IOException {
+    	
+    	return uploadChunk(new FileRegionEntity(channel, start_range, bytes_in_chunk), start_range, bytes_in_chunk) ;
+    }
+    
+    
+    /**
+     * Uploads the chunk held by the buffer (between its position and its limit), which 
+     * starts at the given position of the file.
+     */
+    public int uploadChunk(ByteBuffer chunk, long start_range) throws IOException {
+    	
+    	return uploadChunk(new ByteBufferEntity(chunk), start_range, chunk.remaining()) ;
+    }
+    
+    
+    private int uploadChunk(HttpEntity chunk, long start_range, int bytes_in_array) throws IOException {
+    	
     	logger.info(String.format("% 5.1f%% complete. Uploading next chunk.", start_range*100.0/fileSize));
         String byterange = "bytes " + Long.toString(start_range) + "-" +
                 Long.toString(start_range+bytes_in_array-1) + "/" + getFileSizeString();
@@ -280,224 +279,66 @@ public class DriveResumableUpload {
 	        HttpPut httpPut = new HttpPut(location);
 	        httpPut.addHeader("Authorization", auth.getAuthHeader());
 	        httpPut.addHeader("Content-Range", byterange);
-	        if (bytes_in_array != bytecontent.length) {
+	        if (start_range + bytes_in_array == fileSize) {
 	        	logger.info("Seems to be the last part of the file.");
-	            byte[] contentpart = new byte[bytes_in_array];
-	            for (int i=0; i<bytes_in_array;++i) {
-	                contentpart[i] = bytecontent[i];
-	            }
-	            httpPut.setEntity(new ByteArrayEntity(contentpart));
-	        } else {
-	            httpPut.setEntity(new ByteArrayEntity(bytecontent));
 	        }
+	        httpPut.setEntity(chunk);
 	        response = httpclient.execute(httpPut);
-	        @SuppressWarnings("unused")
-			BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-	        status_code = response.getStatusLine().getStatusCode();
+	        status_code = updateState (response) ;
 	        return status_code;
         } finally {
         	if (response != null) {
+        		// the connection goes back to the pool once the entity is consumed
+        		EntityUtils.consumeQuietly(response.getEntity());
         		response.close();
         	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
         }
     }
 
-    // https://developers.google.com/gdata/docs/resumable_upload
-    private String createResumableUpload(String title, HasDescription description,
-			HasId parentId, HasMimeType mimeType) throws IOException {
+    // https://developers.google.com/drive/web/manage-uploads#resumable
+    private String createResumableUpload(DriveUtils.HasId fileId, File metadata) throws IOException {
+    	
+    	boolean update = (fileId != null) ;
+    	logger.info("Creating " + ((update) ? ("update ") : ("")) + "resumable upload...");
+    	
+    	String uploadUri = "https://www.googleapis.com/upload/drive/v2/files" ;
+    	if (update) {
+    		Preconditions.checkArgument(StringUtils.isNotEmpty(fileId.getId()));
+    		uploadUri = uploadUri + "/" + fileId.getId() ;
+    	}
+    	uploadUri = uploadUri + "?uploadType=resumable" ;
+    	if (update && metadata.getModifiedDate() != null) {
+    		uploadUri = uploadUri + "&setModifiedDate=true" ;
+    	}
+    	// partial response to the last chunk
+    	uploadUri = uploadUri + "&fields=" + URLEncoder.encode(DriveUtils.fileFields, "UTF-8") ;
+    	String mimeType = StringUtils.defaultIfEmpty(metadata.getMimeType(), "application/octet-stream") ;
     	
-    	logger.info("Creating resumable upload...");
-        String postUri = "https://www.googleapis.com/upload/drive/v2/files?uploadType=resumable";
-        if (useOldApi) {
-            postUri = "https://docs.google.com/feeds/upload/create-session/default/private/full?convert=false";
-          	if (parentId != null 
-        			&& org.apache.commons.lang3.StringUtils.isNotEmpty(parentId.getId())) {
-           	
-          		// https://developers.google.com/google-apps/documents-list/
-          		postUri = "https://docs.google.com/feeds/upload/create-session/default/private/full"
-          				+ "/folder%3A"
-          				+ parentId.getId()
-          				+ "/contents"
-          				+ "?convert=false";
-           	}
-        } else {
-        	// TODO: new api
-        	// ...
-        	throw new IllegalStateException ("Not implemented") ;
-        }
-        
     	CloseableHttpClient httpclient = null ;
     	CloseableHttpResponse response = null ;
-        
     	try {
     		httpclient = getHttpClient () ;
-	        HttpPost httpPost = new HttpPost(postUri);
-	        httpPost.addHeader("Authorization", auth.getAuthHeader());
-	        httpPost.addHeader("X-Upload-Content-Type", mimeType.getMimeType());
-	        httpPost.addHeader("X-Upload-Content-Length", getFileSizeString());
-	   
-	        String entityString = new JSONObject().put("title", title).toString();
-	        BasicHeader entityHeader = new BasicHeader(HTTP.CONTENT_TYPE, "application/json");
-	        if (useOldApi) {
-	        	
-	        	StringBuilder sb = new StringBuilder () ;
-	        	sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>") ;
-	        	sb.append("<entry xmlns=\"http://www.w3.org/2005/Atom\" xmlns:docs=\"http://schemas.google.com/docs/2007\">") ;
-	        	sb.append ("<category scheme=\"http://schemas.google.com/g/2005#kind\" term=\"http://schemas.google.com/docs/2007#document\"/>") ;
-	        	// title
-	        	sb.append ("<title>").append(title).append("</title>") ;
-	        	// description
-	        	if (description != null 
-	        			&& org.apache.commons.lang3.StringUtils.isNotEmpty(description.getDescription())) {
-	        		sb.append ("<docs:description>").append (description.getDescription()).append ("</docs:description>") ;
-	        	}
-	        	sb.append ("</entry>") ;            
-	            entityString = sb.toString() ;
-	            httpPost.addHeader("GData-Version","3");
-	            entityHeader = new BasicHeader(HTTP.CONTENT_TYPE, "application/atom+xml");
-	        } else {
-	        	// TODO: new api
-	        	// ...
-	        	throw new IllegalStateException ("Not implemented") ;
-	        }
-	        StringEntity se = new StringEntity( entityString );
-	        se.setContentType(entityHeader);
-	        httpPost.setEntity(se);
-	        //logger.info("Create Resumable: " + httpPost.toString());
-	        response = httpclient.execute(httpPost);
-	        @SuppressWarnings("unused")
-			BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-	        String location = "";
-	        if (response.getStatusLine().getStatusCode() == 200) {
-	            location = response.getHeaders("Location")[0].getValue();
-	            //logger.info("Location: " + location);
-	        }
-	        return location;
-        } finally {
-        	if (response != null) {
-        		response.close();
-        	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
-        }
-    }
-    
-    
-    private String getResumableUploadUpdateUri (DriveUtils.HasId fileId) throws IOException {
-        String getUri = "https://www.googleapis.com/upload/drive/v2/files";
-        if (useOldApi) {
-        	StringBuilder sb = new StringBuilder () ;
-        	sb.append ("https://docs.google.com/feeds/default/private/full/") ;
-        	sb.append (fileId.getId()) ;
-        	getUri = sb.toString() ;
-        } else {
-        	// TODO: new api
-        	// ...
-        	throw new IllegalStateException ("Not implemented") ;
-        }
-        
-    	CloseableHttpClient httpclient = null ;
-    	CloseableHttpResponse response = null ;
-    	String putUri = null ;
-        try {
-	        httpclient = getHttpClient () ;
-	        HttpGet httpGet = new HttpGet(getUri);
-	        httpGet.addHeader("Authorization", auth.getAuthHeader());
-	        httpGet.addHeader("GData-Version","3");
-	        response = httpclient.execute(httpGet);
-	        
-    		BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-    		String contents = IOUtils.toString(entity.getContent(), "UTF8") ;
-    		
-    		String strBegin = "#resumable-edit-media" ;
-    		String uriBegin = "href='" ;
-    		String uriEnd = "'/>" ;
-    		int index = contents.indexOf(strBegin) ;
-    		if (index < 0) {
-    			return null ;
+    		HttpEntityEnclosingRequestBase request = (update) ? (new HttpPut(uploadUri)) : (new HttpPost(uploadUri)) ;
+    		request.addHeader("Authorization", auth.getAuthHeader());
+    		request.addHeader("X-Upload-Content-Type", mimeType);
+    		request.addHeader("X-Upload-Content-Length", getFileSizeString());
+    		request.setEntity(new StringEntity(JacksonFactory.getDefaultInstance().toString(metadata), 
+    				ContentType.APPLICATION_JSON));
+    		response = httpclient.execute(request);
+    		EntityUtils.consume(response.getEntity());
+    		String location = "";
+    		if (response.getStatusLine().getStatusCode() == 200) {
+    			location = response.getHeaders("Location")[0].getValue();
+    		} else {
+    			logger.info("Status: " + response.getStatusLine());
     		}
-    		contents = contents.substring(index + strBegin.length()) ;
-    		
-    		index = contents.indexOf(uriBegin) ;
-    		if (index < 0) {
-    			return null ;
-    		}		
-    		contents = contents.substring(index + uriBegin.length()) ;
-    		
-    		index = contents.indexOf(uriEnd) ;
-    		if (index < 0) {
-    			return null ;
-    		}
-    		contents = contents.substring(0, index) ;
-            EntityUtils.consume(response.getEntity());
-            putUri = contents ;
-    		//logger.info("Upload update uri: " + putUri);
-    		return putUri ;
-        } finally {
-        	if (response != null) {
-        		response.close();
-        	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
-        }
-    }
-    
-    
-    private String createResumableUploadUpdate(DriveUtils.HasId fileId, HasMimeType mimeType) throws IOException {
-    	
-    	logger.info("Creating update resumable upload...");
-    	Preconditions.checkArgument(fileId != null);
-    	Preconditions.checkArgument(StringUtils.isNotEmpty(fileId.getId()));
-
-    	CloseableHttpClient httpclient = null ;
-    	CloseableHttpResponse response = null ;
-    	
-    	// https://developers.google.com/google-apps/documents-list/#updatingchanging_documents_and_files
-
-    	try {
-	        String putUri = "https://www.googleapis.com/upload/drive/v2/files?uploadType=resumable";
-	        if (useOldApi) {
-	        	putUri = getResumableUploadUpdateUri (fileId) ;
-	        	//putUri = "https://docs.google.com/feeds/upload/create-session/default/private/full/file%3A";
-	        	//putUri = putUri + fileId.getId() ;
-	        } else {
-	        	// TODO: new api
-	        	// ...
-	        	throw new IllegalStateException ("Not implemented") ;
-	        }
-	    	httpclient = getHttpClient () ;
-	        HttpPut httpPut = new HttpPut(putUri);
-	        httpPut.addHeader("Authorization", auth.getAuthHeader());
-	        httpPut.addHeader("If-Match", "*");
-	        httpPut.addHeader("X-Upload-Content-Type", mimeType.getMimeType());
-	        httpPut.addHeader("X-Upload-Content-Length", getFileSizeString());
-	        httpPut.addHeader("GData-Version","3");
-	        
-	        //logger.info("Create Update Resumable Upload: " + httpPut.toString());
-	        response = httpclient.execute(httpPut);
-	        @SuppressWarnings("unused")
-			BufferedHttpEntity entity = new BufferedHttpEntity(response.getEntity());
-	        EntityUtils.consume(response.getEntity());
-	        String location = "";
-	        if (response.getStatusLine().getStatusCode() == 200) {
-	            location = response.getHeaders("Location")[0].getValue();
-	            //logger.info("Location: " + location);
-	        }
-	        return location;
-        } finally {
+    		return location;
+    	} finally {
         	if (response != null) {
+        		// the connection goes back to the pool once the entity is consumed
+        		EntityUtils.consumeQuietly(response.getEntity());
         		response.close();
         	}
-        	if (httpclient != null) {
-        		httpclient.close();
-        	}
         }
     }
 }
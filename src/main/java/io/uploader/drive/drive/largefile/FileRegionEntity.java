@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Entity whose content is a region of a file. The bytes are transferred from the channel 
+ * to the output stream of the connection, so that no buffer of the size of the region 
+ * is ever allocated. Positional reads are used, the channel can therefore be shared.
+ */
+class FileRegionEntity extends AbstractHttpEntity {
+
+	private static final int bufferSize = 64 * 1024 ;
+	
+	private final FileChannel channel ;
+	private final long position ;
+	private final long length ;
+	
+	public FileRegionEntity (FileChannel channel, long position, long length) {
+		super () ;
+		Preconditions.checkArgument(position >= 0 && length >= 0) ;
+		this.channel = Preconditions.checkNotNull(channel) ;
+		this.position = position ;
+		this.length = length ;
+		setContentType("application/octet-stream") ;
+	}
+	
+	
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	
+	@Override
+	public InputStream getContent() throws IOException {
+		return new InputStream () {
+
+			private long offset = 0 ;
+			
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1] ;
+				return (read (b, 0, 1) < 0) ? (-1) : (b[0] & 0xff) ;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (offset >= length) {
+					return -1 ;
+				}
+				int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, length - offset)), position + offset) ;
+				if (r > 0) {
+					offset += r ;
+				}
+				return r ;
+			}
+		} ;
+	}
+
+	
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		Preconditions.checkNotNull(outstream) ;
+		WritableByteChannel target = Channels.newChannel(outstream) ;
+		long offset = 0 ;
+		while (offset < length) {
+			// the channel copies through a small transient buffer when the target is not a file or a socket
+			long transferred = channel.transferTo(position + offset, Math.min(bufferSize, length - offset), target) ;
+			if (transferred <= 0) {
+				throw new IOException ("Unexpected end of file at position " + (position + offset)) ;
+			}
+			offset += transferred ;
+		}
+		outstream.flush() ;
+	}
+
+	
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -18,15 +18,19 @@ import java.io.IOException;
 
 import io.uploader.drive.config.HasConfiguration;
 import io.uploader.drive.drive.DriveUtils.HasId;
-import io.uploader.drive.drive.DriveUtils.HasMimeType;
 import io.uploader.drive.util.FileUtils.InputStreamProgressFilter.StreamProgressCallback;
 
+import com.google.api.services.drive.model.File;
+
 public class GDriveUpdater extends GDriveUpload {
 
+	/**
+	 * Update through the Drive v2 endpoint, the metadata being sent along with the content.
+	 */
 	public GDriveUpdater(HasConfiguration config, HasId fileId,
-			HasMimeType mimeType, String filename,
+			File metadata, String filename, String md5,
 			StreamProgressCallback progressCallback) {
-		super(config, fileId, mimeType, filename, progressCallback);
+		super(config, fileId, metadata, filename, md5, progressCallback);
 	}
 	
 	public String updateFile() throws IOException {
@@ -33,16 +33,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
+import com.google.api.services.drive.model.File;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import io.uploader.drive.config.HasConfiguration;
-import io.uploader.drive.drive.DriveUtils.HasDescription;
+import io.uploader.drive.drive.ChunkBufferPool;
+import io.uploader.drive.drive.ChunkSizer;
+import io.uploader.drive.drive.ConcurrencyController;
 import io.uploader.drive.drive.DriveUtils.HasId;
-import io.uploader.drive.drive.DriveUtils.HasMimeType;
 import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 
 class GDriveUpload {
@@ -53,56 +62,144 @@ class GDriveUpload {
     private final String title ;
     private final String filename ;
     private final InputStreamProgressFilter.StreamProgressCallback progressCallback ;
-    private final HasMimeType mimeType ;
-    private final HasId parentId ;
-    private final HasDescription description ;
     private final HasId fileId ;
+    // metadata of the file, sent through the Drive v2 endpoint
+    private final File metadata ;
+    private File uploadedFile = null ;
     
-    private final String tmpFilePath ;
+    // key of the session in the journal
+    private final String sessionKey ;
+    // session already claimed from the journal (recovery of an interrupted upload)
+    private final UploadSessionJournal.Session recoveredSession ;
     private String md5 = null ;
     
-    // https://developers.google.com/google-apps/documents-list/#uploading_a_new_document_or_file_with_both_metadata_and_content
+    // https://developers.google.com/drive/web/manage-uploads#resumable
     // Important: Always choose a chunk size that is a multiple of 512 kilobytes. The last chunk may be smaller than 512 kilobytes.
-    private final int chunkSize = 10 * 1024 * 1024 ;
+    // The size is adjusted along the upload from the measured throughput and failures
+    private final ChunkSizer chunkSizer ;
     
-    protected GDriveUpload (HasConfiguration config, String title,
-			HasDescription description, HasId parentId, HasMimeType mimeType,
-			String filename, InputStreamProgressFilter.StreamProgressCallback progressCallback) {
+    /**
+     * Upload through the Drive v2 endpoint; the metadata (title, parents, modification date, 
+     * etc.) are sent along with the content.
+     * 
+     * @param fileId the file to update, or {@code null} to insert a new file
+     */
+    protected GDriveUpload (HasConfiguration config, HasId fileId, File metadata,
+			String filename, String md5, InputStreamProgressFilter.StreamProgressCallback progressCallback) {
     	super () ;
     	
     	this.config = config ;
-    	this.title = title ;
+    	this.metadata = Preconditions.checkNotNull(metadata) ;
+    	this.title = metadata.getTitle() ;
     	this.filename = filename ;
     	this.progressCallback = progressCallback ;
-    	this.mimeType = mimeType ;
-    	this.parentId = parentId ;
-    	this.description = description ;
-    	this.fileId = null ;
-    	
-    	tmpFilePath = config.getTmpDirectory() + title + ".tmp" ;
-    	logger.info ("Tmp file: " + tmpFilePath) ;
+    	this.fileId = fileId ;
+    	this.md5 = md5 ;
+    	this.chunkSizer = new ChunkSizer (config.getUploadSettings()) ;
+    	this.recoveredSession = null ;
+    	this.sessionKey = UploadSessionJournal.newKey(filename, (fileId != null) ? (fileId.getId()) 
+    			: (String.valueOf(metadata.getParents())), (fileId != null) ? (null) : (title)) ;
     }
-        
     
-    protected GDriveUpload (HasConfiguration config, HasId fileId, HasMimeType mimeType,
-			String filename, InputStreamProgressFilter.StreamProgressCallback progressCallback) {
+    
+    /**
+     * Continues a session of the journal (e.g., interrupted by the end of a previous run); the 
+     * metadata have been sent when the session started. The session must have been claimed.
+     */
+    protected GDriveUpload (HasConfiguration config, UploadSessionJournal.Session session) {
     	super () ;
     	
     	this.config = config ;
+    	this.metadata = new File () ;
     	this.title = null ;
-    	this.filename = filename ;
-    	this.progressCallback = progressCallback ;
-    	this.mimeType = mimeType ;
-    	this.parentId = null ;
-    	this.description = null ;
-    	this.fileId = fileId ;
+    	this.filename = session.getPath() ;
+    	this.progressCallback = null ;
+    	this.fileId = null ;
+    	this.md5 = session.getMd5() ;
+    	this.chunkSizer = new ChunkSizer (config.getUploadSettings()) ;
+    	this.recoveredSession = session ;
+    	this.sessionKey = session.getKey() ;
+    }
+    
+    
+    /**
+     * @return the resource of the uploaded file, as returned by the server once the upload 
+     * completed, or {@code null} if unknown (e.g., with the old API)
+     */
+    public File getUploadedFile() {
+    	return uploadedFile ;
+    }
+    
+    
+    /**
+     * MD5 checksum computed incrementally, right after each chunk is sent (while the bytes are 
+     * still in the page cache). The bytes which were not sent by this instance (e.g., when 
+     * resuming an upload started earlier) are read from the file as well.
+     */
+    private static class StreamedMd5 {
+    	
+    	private static final int bufferSize = 1024 * 1024 ;
+    	
+    	private final FileChannel channel ;
+    	private final MessageDigest digest = DigestUtils.getMd5Digest() ;
+    	private long position = 0 ;
     	
-    	tmpFilePath = config.getTmpDirectory() + Paths.get(filename).getFileName().toString() + "-update.tmp" ;
-    	logger.info ("Tmp file: " + tmpFilePath) ;
+    	StreamedMd5 (FileChannel channel) {
+    		super () ;
+    		this.channel = channel ;
+    	}
+    	
+    	void update (ByteBuffer chunk, long chunkPosition) throws IOException {
+    		if (chunkPosition > position) {
+    			catchUp (chunkPosition) ;
+    		}
+    		// the beginning of the chunk may have already been taken into account (partial acknowledgement)
+    		long offset = position - chunkPosition ;
+    		if (offset < chunk.remaining()) {
+    			ByteBuffer region = chunk.duplicate() ;
+    			region.position(region.position() + (int) offset) ;
+    			digest.update(region) ;
+    			position = chunkPosition + chunk.remaining() ;
+    		}
+    	}
+    	
+    	void update (long upTo) throws IOException {
+    		// the beginning of the chunk may have already been taken into account (partial acknowledgement)
+    		if (upTo > position) {
+    			catchUp (upTo) ;
+    		}
+    	}
+    	
+    	private void catchUp (long upTo) throws IOException {
+    		logger.debug("Read bytes " + position + " to " + upTo + " for the md5 checksum");
+    		ByteBuffer buffer = ChunkBufferPool.INSTANCE.acquire(bufferSize) ;
+    		try {
+	    		while (position < upTo) {
+	    			buffer.clear() ;
+	    			buffer.limit((int) Math.min(bufferSize, upTo - position)) ;
+	    			int r = channel.read(buffer, position) ;
+	    			if (r < 0) {
+	    				throw new EOFException () ;
+	    			}
+	    			buffer.flip() ;
+	    			digest.update(buffer) ;
+	    			position += r ;
+	    		}
+    		} finally {
+    			ChunkBufferPool.INSTANCE.release(buffer) ;
+    		}
+    	}
+    	
+    	String finish (long size) throws IOException {
+    		if (position < size) {
+    			catchUp (size) ;
+    		}
+    		return Hex.encodeHexString(digest.digest()) ;
+    	}
     }
     
     
-    private static class TransferException extends IOException {
+    static class TransferException extends IOException {
 
 		private static final long serialVersionUID = 1L;
 		
@@ -119,26 +216,71 @@ class GDriveUpload {
     }
     
     
+    private void notifyProgress (long position, long size) {
+    	if (progressCallback != null) {
+    		progressCallback.onStreamProgress((size == 0) ? (1.0) : (position / (double) size)) ;
+    	}
+    }
+    
+    
+    /**
+     * The acknowledged range comes with the response to each chunk, hence the status of the 
+     * upload is only queried when unknown (e.g., after an error, or when resuming).
+     */
+    private long getCurrentBytePosition (DriveResumableUpload upload) throws IOException {
+    	long acknowledged = upload.getAcknowledgedByte() ;
+    	return (acknowledged >= 0) ? (acknowledged) : (upload.getCurrentByte()) ;
+    }
+    
+    
     private String uploadFile(DriveResumableUpload upload, BasicFileAttributes attr) throws IOException {
     	
-        long currentBytePosition = upload.getCurrentByte();
-        File file = new File(filename);
+    	try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+    			ChunkReadAhead readAhead = new ChunkReadAhead (channel)) {
+    		return uploadFile(upload, attr, channel, readAhead) ;
+    	}
+    }
+    
+    
+    private String uploadFile(DriveResumableUpload upload, BasicFileAttributes attr, FileChannel channel, ChunkReadAhead readAhead) throws IOException {
+    	
+        long currentBytePosition = getCurrentBytePosition(upload);
+        // unless already known, the md5 is computed from the bytes sent
+        StreamedMd5 streamedMd5 = (md5 == null) ? (new StreamedMd5 (channel)) : (null) ;
         if (currentBytePosition > -1 && currentBytePosition < attr.size()) {
-            byte[] chunk;
             int retries = 0;
             while (retries < 5) {
-                InputStream stream = io.uploader.drive.util.FileUtils
-						.getInputStreamWithProgressFilter(
-								progressCallback, attr.size(),
-								new FileInputStream(file)) ;
-                if (currentBytePosition > 0) {
-                    stream.skip(currentBytePosition);
-                }
-                chunk = new byte[chunkSize];
-                int bytes_read = stream.read(chunk, 0, chunkSize);
-                stream.close();
+                ChunkReadAhead.Chunk chunk = readAhead.take(currentBytePosition);
+                int bytes_read = (chunk != null) ? (chunk.getLength()) : ((int) Math.min(chunkSizer.getChunkSize(), attr.size() - currentBytePosition));
                 if (bytes_read > 0) {
-                    int status = upload.uploadChunk(chunk, currentBytePosition, bytes_read);
+                    // the next chunk is read while this one is being sent
+                    readAhead.prefetch(currentBytePosition + bytes_read, (int) Math.min(chunkSizer.getChunkSize(), attr.size() - currentBytePosition - bytes_read));
+                    long chunkStartTime = System.nanoTime();
+                    int status;
+                    try {
+                    	if (chunk != null) {
+                    		status = upload.uploadChunk(chunk.getBuffer(), currentBytePosition);
+                    		if (streamedMd5 != null) {
+                    			streamedMd5.update(chunk.getBuffer(), currentBytePosition);
+                    		}
+                    	} else {
+                    		// the chunk is streamed from the channel, straight to the connection
+                    		status = upload.uploadChunk(channel, currentBytePosition, bytes_read);
+                    		if (streamedMd5 != null) {
+                    			// the chunk has just been read, it is still in the page cache
+                    			streamedMd5.update(currentBytePosition + bytes_read);
+                    		}
+                    	}
+                    } finally {
+                    	readAhead.release(chunk);
+                    }
+                    if (status == 308 || status == 200 || status == 201) {
+                    	chunkSizer.onChunkSent(bytes_read, System.nanoTime() - chunkStartTime);
+                    } else if (status != 401) {
+                    	chunkSizer.onChunkFailed();
+                    }
+                    notifyProgress(currentBytePosition + bytes_read, attr.size());
+                    ConcurrencyController.INSTANCE.onResponse(status, null);
                     if (status == 308) {
                         // If Status is 308 RESUME INCOMPLETE there's no retry done.
                         retries = 0;
@@ -156,27 +298,33 @@ class GDriveUpload {
                         upload.updateAccessToken();
                     } else if (status == 200 || status == 201) {
                     	
+                    	if (streamedMd5 != null) {
+                    		md5 = streamedMd5.finish(attr.size()) ;
+                    	}
                         boolean success = upload.checkMD5(md5);
                         logger.info("local md5sum: " + md5);
                         logger.info("File upload complete.");
                         if (!success) {
-                        	throw new TransferException (false, "The md5 values do not macth") ;
+                        	throw new TransferException (true, "The md5 values do not macth") ;
                         }
                         break ;
-                    } else if (status == 404) {
-                    	// this can be due to a remaining temporary file with an out-dated link
-                    	// we throw that exception with no recovery option (not resumable) in order to 
-                    	// delete this file (if any)
-                    	throw new TransferException (false, "The file cannot be found") ;
+                    } else if (status == 404 || status == 410) {
+                    	// the session has expired (or the link is out-dated): no recovery option (not 
+                    	// resumable), the session is removed from the journal
+                    	throw new TransferException (true, "The upload session cannot be found") ;
                     }
                     else {
                     	logger.info("Status: " + String.valueOf(status));
                     }
                 }
                 ++retries;
-                currentBytePosition = upload.getCurrentByte();
+                currentBytePosition = getCurrentBytePosition(upload);
+                UploadSessionJournal.INSTANCE.update(sessionKey, currentBytePosition);
             }
         } else if (currentBytePosition == attr.size ()) {
+        	if (streamedMd5 != null) {
+        		md5 = streamedMd5.finish(attr.size()) ;
+        	}
             boolean success = upload.checkMD5(md5);
             logger.info("local md5sum: " + md5);
             logger.info("File upload complete.");
@@ -185,90 +333,91 @@ class GDriveUpload {
             	throw new IOException ("The md5 values do not macth") ;
             }
         } else {
-            // Some BUG occured. lastbyte = -1.
-        	throw new TransferException (false, "Some anomalies have been observed") ;
+            // unknown position (lastbyte = -1), e.g. the session has expired
+        	throw new TransferException (true, "Some anomalies have been observed") ;
         }
         // get file id
         return upload.getFileId() ;
     }
     
     
+	private DriveResumableUpload newDriveResumableUpload (String location, BasicFileAttributes attr) throws IOException, URISyntaxException {
+		return new DriveResumableUpload(
+				config.getHttpProxySettings(), new DriveAuth(config), location, fileId, metadata, attr.size());
+	}
+	
+	
+	private UploadSessionJournal openJournal () {
+		try {
+			UploadSessionJournal.INSTANCE.open(config.getDataStoreDirectory()) ;
+		} catch (IOException e) {
+			// the upload can go on, it just cannot be resumed after a crash
+			logger.error("Error occurred while opening the upload session journal", e);
+		}
+		return UploadSessionJournal.INSTANCE ;
+	}
+	
+	
 	protected String uploadFile(boolean update) throws IOException {
 		
     	Preconditions.checkState(update == (fileId != null));
     	
-		DriveResumableUpload upload = null;
-		BasicFileAttributes attr = null;
-		File fstatus = null;
+    	UploadSessionJournal journal = openJournal () ;
+		UploadSessionJournal.Session session = (recoveredSession != null) ? (recoveredSession) : (journal.claim(sessionKey)) ;
 		try {
-			String googleLocation;
-			String filestatus = tmpFilePath;
-			attr = io.uploader.drive.util.FileUtils.getFileAttr(Paths
+			DriveResumableUpload upload = null;
+			BasicFileAttributes attr = io.uploader.drive.util.FileUtils.getFileAttr(Paths
 					.get(filename));
-
-			fstatus = new File(filestatus);
-			if (fstatus.exists()) {
-				BufferedReader in = new BufferedReader(new FileReader(
-						filestatus));
-				md5 = in.readLine();
-				googleLocation = in.readLine();
-				in.close();
-
-				if (update) {
-					upload = new DriveResumableUpload(
-							config.getHttpProxySettings(), new DriveAuth(config), googleLocation, fileId, mimeType, filename, attr.size(),
-							progressCallback);
-				} else {
-					upload = new DriveResumableUpload(
-							config.getHttpProxySettings(), new DriveAuth(config), googleLocation, title,
-							description, parentId, mimeType, filename, attr.size(),
-							progressCallback);
+			try {
+				if (session != null && !session.isUnchanged(attr)) {
+					logger.info("The file " + filename + " has changed since its upload started, the session is dropped");
+					journal.end(sessionKey) ;
+					session = null ;
 				}
-			} else {
-				if (md5 == null) {
-					FileInputStream fis = new FileInputStream(
-							new File(filename));
-					md5 = org.apache.commons.codec.digest.DigestUtils
-							.md5Hex(fis);
-					logger.info("md5: " + md5);
-					fis.close();
+				if (session == null && recoveredSession != null) {
+					// the metadata of the recovered upload are unknown
+					throw new TransferException (true, "The upload of " + filename + " cannot be resumed") ;
 				}
-				// Completely new upload. location: null
-				if (update) {
-					upload = new DriveResumableUpload(
-							config.getHttpProxySettings(), new DriveAuth(config), null, fileId, mimeType, filename, attr.size(),
-							progressCallback);
-				} else {
-					upload = new DriveResumableUpload(
-							config.getHttpProxySettings(), new DriveAuth(config), null, title,
-							description, parentId, mimeType, filename, attr.size(),
-							progressCallback);
+				if (session != null) {
+					logger.info("Resume the upload of " + filename + " (" + session.getOffset() + " bytes already sent)");
+					if (session.getMd5() != null) {
+						md5 = session.getMd5() ;
+					}
+					upload = newDriveResumableUpload (session.getLocation(), attr) ;
+					if (upload.getCurrentByte() < 0) {
+						// expired (or stale) session
+						logger.info("The upload session of " + filename + " has expired, the session is dropped");
+						journal.end(sessionKey) ;
+						upload = null ;
+						if (recoveredSession != null) {
+							throw new TransferException (true, "The upload of " + filename + " cannot be resumed") ;
+						}
+					}
 				}
-
-				// Write location and md5 to file for later resume
-				BufferedWriter out = new BufferedWriter(new FileWriter(
-						filestatus));
-				out.write(md5 + "\n" + upload.getLocation() + "\n");
-				out.close();
-			}
-		} catch (URISyntaxException e) {
-			logger.error("Error occurred while uploading files", e);
-			throw new RuntimeException("Error occurred while uploading files "
-					+ e.getMessage());
-		}
-		try {
-			String ret = uploadFile(upload, attr);
-			if (fstatus != null && fstatus.exists()) {
-				fstatus.delete();
+				if (upload == null) {
+					// Completely new upload. location: null
+					upload = newDriveResumableUpload (null, attr) ;
+					// record the session (and md5, if already known) for later resume
+					journal.begin(sessionKey, filename, attr, md5, upload.getLocation()) ;
+				}
+			} catch (URISyntaxException e) {
+				logger.error("Error occurred while uploading files", e);
+				throw new RuntimeException("Error occurred while uploading files "
+						+ e.getMessage());
 			}
-			return ret;
-		} catch (TransferException e) {
-			if (e.isNotResumable()) {
-				if (fstatus != null && fstatus.exists()) {
-					fstatus.delete();
+			try {
+				String ret = uploadFile(upload, attr);
+				uploadedFile = upload.getFile() ;
+				journal.end(sessionKey) ;
+				return ret;
+			} catch (TransferException e) {
+				if (e.isNotResumable()) {
+					journal.end(sessionKey) ;
 				}
+				throw e ;
 			}
-			throw new IOException (e.getMessage()) ;
+		} finally {
+			journal.release(sessionKey) ;
 		}
     }
-}
\ No newline at end of file
+}
@@ -17,18 +17,18 @@ package io.uploader.drive.drive.largefile;
 import java.io.IOException;
 
 import io.uploader.drive.config.HasConfiguration;
-import io.uploader.drive.drive.DriveUtils.HasDescription;
-import io.uploader.drive.drive.DriveUtils.HasId;
-import io.uploader.drive.drive.DriveUtils.HasMimeType;
 import io.uploader.drive.util.FileUtils.InputStreamProgressFilter.StreamProgressCallback;
 
+import com.google.api.services.drive.model.File;
+
 public class GDriveUploader extends GDriveUpload {
 
-	public GDriveUploader(HasConfiguration config, String title,
-			HasDescription description, HasId parentId, HasMimeType mimeType,
+	/**
+	 * Upload through the Drive v2 endpoint, the metadata being sent along with the content.
+	 */
+	public GDriveUploader(HasConfiguration config, File metadata,
 			String filename, StreamProgressCallback progressCallback) {
-		super(config, title, description, parentId, mimeType, filename,
-				progressCallback);
+		super(config, null, metadata, filename, null, progressCallback);
 	}
 
 	public String uploadFile() throws IOException {
@@ -17,35 +17,139 @@ package io.uploader.drive.drive.largefile;
 
 import io.uploader.drive.config.proxy.HasProxySettings;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Process-wide HTTP clients. All the clients share one pool of keep-alive connections, so 
+ * that the chunks, the status queries and the token refreshes do not each pay for a new 
+ * TCP and TLS handshake. The clients are shared: they must not be closed.
+ */
 public class HttpClientUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(HttpClientUtils.class);
 	
-    public static CloseableHttpClient getHttpClient (HasProxySettings proxySetting) {
+	private static final int defaultMaxConnectionsPerRoute = 10 ;
+	// most requests go to a handful of hosts (www.googleapis.com, accounts.google.com)
+	private static final int maxRoutes = 4 ;
+	private static final long defaultKeepAliveMillis = 30000 ;
+	private static final long maxIdleMillis = 60000 ;
+	
+	private static PoolingHttpClientConnectionManager connectionManager = null ;
+	// clients by proxy settings
+	private static final Map<String, CloseableHttpClient> clients = new HashMap<String, CloseableHttpClient> () ;
+	
+	
+	private HttpClientUtils () {
+		super () ;
+	}
+	
+	
+	private static synchronized PoolingHttpClientConnectionManager getConnectionManager () {
+		if (connectionManager == null) {
+			connectionManager = new PoolingHttpClientConnectionManager () ;
+			connectionManager.setDefaultMaxPerRoute(defaultMaxConnectionsPerRoute);
+			connectionManager.setMaxTotal(defaultMaxConnectionsPerRoute * maxRoutes);
+			
+			// closes the connections the server is likely to have dropped
+			final PoolingHttpClientConnectionManager manager = connectionManager ;
+			ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("http-connection-evictor").setDaemon(true).build()) ;
+			evictor.scheduleWithFixedDelay(new Runnable () {
+				@Override
+				public void run() {
+					manager.closeExpiredConnections();
+					manager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+				}}, maxIdleMillis, maxIdleMillis / 2, TimeUnit.MILLISECONDS) ;
+		}
+		return connectionManager ;
+	}
+	
+	
+	/**
+	 * Sizes the pool for the given number of concurrent uploads; each upload may have a 
+	 * chunk in flight while the next operation (status query, metadata) is sent.
+	 */
+	public static synchronized void setConcurrency (int concurrency) {
+		int perRoute = Math.max(defaultMaxConnectionsPerRoute, 2 * concurrency) ;
+		PoolingHttpClientConnectionManager manager = getConnectionManager () ;
+		if (manager.getDefaultMaxPerRoute() != perRoute) {
+			logger.info("Max connections per route: " + perRoute) ;
+			manager.setDefaultMaxPerRoute(perRoute);
+			manager.setMaxTotal(perRoute * maxRoutes);
+		}
+	}
+	
+	
+	private static String getKey (HasProxySettings proxySetting) {
+		if (proxySetting == null || !proxySetting.isActive()) {
+			return "" ;
+		}
+		return proxySetting.getHost() + ":" + proxySetting.getPort() + ":" 
+				+ proxySetting.getUsername() + ":" + proxySetting.getPassword() ;
+	}
+	
+	
+    public static synchronized CloseableHttpClient getHttpClient (HasProxySettings proxySetting) {
     	// http://hc.apache.org/httpcomponents-client-ga/tutorial/html/connmgmt.html#d5e475
     	
-    	CloseableHttpClient httpclient = null ;
+    	String key = getKey (proxySetting) ;
+    	CloseableHttpClient httpclient = clients.get(key) ;
+    	if (httpclient != null) {
+    		return httpclient ;
+    	}
+    	ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy () {
+    		@Override
+    		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+    			long duration = super.getKeepAliveDuration(response, context) ;
+    			// the server did not say, do not keep the connection forever
+    			return (duration > 0) ? (duration) : (defaultKeepAliveMillis) ;
+    		}
+    	} ;
     	if (proxySetting != null && proxySetting.isActive()) {
     		logger.info("Set the http proxy (" + proxySetting.getHost() + ":" + proxySetting.getPort() + ")") ;
     		CredentialsProvider credsProvider = Preconditions.checkNotNull(proxySetting.getCredentialsProvider()) ;
         	HttpHost proxy = new HttpHost(proxySetting.getHost(), proxySetting.getPort());
         	DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
-        	httpclient = HttpClients.custom()
+        	httpclient = HttpClients.custom().setConnectionManager(getConnectionManager ())
+        			.setKeepAliveStrategy(keepAliveStrategy)
         	        .setRoutePlanner(routePlanner).setDefaultCredentialsProvider(credsProvider)
         	        .build();
     	} else {
-    		httpclient = HttpClients.createDefault();
+    		httpclient = HttpClients.custom().setConnectionManager(getConnectionManager ())
+    				.setKeepAliveStrategy(keepAliveStrategy)
+    				.build();
     	}
+    	clients.put(key, httpclient) ;
     	return httpclient ;
     }
+    
+    
+    /**
+     * @return a transport for the Drive client, on the shared pool of connections, which 
+     * follows the changes of the given proxy settings
+     */
+    public static HttpTransport getHttpTransport (HasProxySettings proxySetting) {
+    	return new PooledHttpTransport (proxySetting) ;
+    }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.repackaged.com.google.common.base.Preconditions;
+import com.google.api.client.util.StreamingContent;
+
+import io.uploader.drive.config.proxy.HasProxySettings;
+
+/**
+ * Transport of the Google API client running on a (shared) Apache client, hence on its pool 
+ * of keep-alive connections. The Apache transport of the Google library cannot be used 
+ * here, it relies on the parameters API the clients of HttpClient 4.3 no longer support.
+ * 
+ * <p>
+ * The client is looked up for each request from the proxy settings, so that a change of 
+ * the proxy (e.g., from the settings dialog) applies to the next request.
+ * </p>
+ */
+public class PooledHttpTransport extends HttpTransport {
+
+	private final HasProxySettings proxySetting ;
+	
+	
+	/**
+	 * @param proxySetting the (live) proxy settings, or {@code null} for a direct connection
+	 */
+	public PooledHttpTransport (HasProxySettings proxySetting) {
+		super () ;
+		this.proxySetting = proxySetting ;
+	}
+	
+	
+	@Override
+	public boolean supportsMethod(String method) {
+		return true ;
+	}
+	
+
+	@Override
+	protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+		return new Request (method, url, HttpClientUtils.getHttpClient(proxySetting)) ;
+	}
+	
+	
+	@Override
+	public void shutdown() throws IOException {
+		// the client is shared
+	}
+	
+	
+	private static class Method extends HttpEntityEnclosingRequestBase {
+		
+		private final String method ;
+		
+		public Method (String method, String url) {
+			super () ;
+			this.method = method ;
+			setURI (java.net.URI.create(url)) ;
+		}
+
+		@Override
+		public String getMethod() {
+			return method ;
+		}
+	}
+	
+	
+	private static class ContentEntity extends AbstractHttpEntity {
+		
+		private final StreamingContent content ;
+		private final long length ;
+		
+		public ContentEntity (StreamingContent content, long length) {
+			super () ;
+			this.content = content ;
+			this.length = length ;
+			setChunked (length < 0) ;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false ;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length ;
+		}
+
+		/**
+		 * The client sends the content through {@link #writeTo(OutputStream)}; the content 
+		 * is buffered in memory only for the callers that read it as a stream (e.g., 
+		 * wrapping entities).
+		 */
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream () ;
+			writeTo (buffer) ;
+			return new ByteArrayInputStream (buffer.toByteArray()) ;
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			if (length != 0) {
+				content.writeTo(outstream) ;
+			}
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true ;
+		}
+	}
+	
+	
+	private static class Request extends LowLevelHttpRequest {
+		
+		private final Method request ;
+		private final CloseableHttpClient httpClient ;
+		
+		public Request (String method, String url, CloseableHttpClient httpClient) {
+			super () ;
+			this.request = new Method (method, url) ;
+			this.httpClient = Preconditions.checkNotNull(httpClient) ;
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			request.addHeader(name, value) ;
+		}
+		
+		@Override
+		public void setTimeout(int connectTimeout, int readTimeout) {
+			request.setConfig(RequestConfig.custom().setConnectTimeout(connectTimeout)
+					.setSocketTimeout(readTimeout).build()) ;
+		}
+
+		@Override
+		public LowLevelHttpResponse execute() throws IOException {
+			StreamingContent content = getStreamingContent () ;
+			if (content != null) {
+				ContentEntity entity = new ContentEntity (content, getContentLength ()) ;
+				entity.setContentType(getContentType ()) ;
+				entity.setContentEncoding(getContentEncoding ()) ;
+				request.setEntity(entity) ;
+			}
+			return new Response (httpClient.execute(request)) ;
+		}
+	}
+	
+	
+	private static class Response extends LowLevelHttpResponse {
+		
+		private final CloseableHttpResponse response ;
+		private final Header[] headers ;
+		
+		public Response (CloseableHttpResponse response) {
+			super () ;
+			this.response = response ;
+			this.headers = response.getAllHeaders() ;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			HttpEntity entity = response.getEntity() ;
+			return (entity == null) ? (null) : (entity.getContent()) ;
+		}
+
+		@Override
+		public String getContentEncoding() {
+			HttpEntity entity = response.getEntity() ;
+			Header header = (entity == null) ? (null) : (entity.getContentEncoding()) ;
+			return (header == null) ? (null) : (header.getValue()) ;
+		}
+
+		@Override
+		public long getContentLength() {
+			HttpEntity entity = response.getEntity() ;
+			return (entity == null) ? (-1) : (entity.getContentLength()) ;
+		}
+
+		@Override
+		public String getContentType() {
+			HttpEntity entity = response.getEntity() ;
+			Header header = (entity == null) ? (null) : (entity.getContentType()) ;
+			return (header == null) ? (null) : (header.getValue()) ;
+		}
+
+		@Override
+		public String getStatusLine() {
+			return response.getStatusLine().toString() ;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return response.getStatusLine().getStatusCode() ;
+		}
+
+		@Override
+		public String getReasonPhrase() {
+			return response.getStatusLine().getReasonPhrase() ;
+		}
+
+		@Override
+		public int getHeaderCount() {
+			return headers.length ;
+		}
+
+		@Override
+		public String getHeaderName(int index) {
+			return headers[index].getName() ;
+		}
+
+		@Override
+		public String getHeaderValue(int index) {
+			return headers[index].getValue() ;
+		}
+
+		@Override
+		public void disconnect() throws IOException {
+			// the content has been read (or ignored), the connection goes back to the pool
+			response.close() ;
+		}
+	}
+}
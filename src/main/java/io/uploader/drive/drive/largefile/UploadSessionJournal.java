@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+/**
+ * Crash-safe journal of the resumable upload sessions in flight.
+ * 
+ * <p>
+ * Each session is recorded with the path, the size and the last modified time of the 
+ * local file, the session URI and the offset acknowledged by the server, so that an upload 
+ * interrupted by a crash or a reboot can continue from the last acknowledged byte (see 
+ * {@link UploadSessionRecovery}). The journal is an append-only log (the last record of 
+ * a session winning, an end record removing it), each record being forced to the disk 
+ * before going on; it is compacted when opened and as it grows.
+ * </p>
+ * 
+ * <p>
+ * A session is claimed by the upload that carries it on, so that two uploads never send 
+ * the content of the same session.
+ * </p>
+ */
+public enum UploadSessionJournal {
+	INSTANCE ;
+	
+	private final Logger logger = LoggerFactory.getLogger(UploadSessionJournal.class);
+	
+	private static final String journalFileName = "sessions.journal" ;
+	private static final String separator = "\t" ;
+	private static final String sessionTag = "S" ;
+	private static final String endTag = "E" ;
+	private static final int numberOfFields = 8 ;
+	private static final int minRecordsBeforeCompaction = 1024 ;
+	
+	public static class Session {
+		
+		private final String key ;
+		private final String path ;
+		private final long size ;
+		private final long lastModified ;
+		private final long offset ;
+		private final String md5 ;
+		private final String location ;
+		
+		private Session(String key, String path, long size, long lastModified, long offset, String md5, String location) {
+			super();
+			this.key = key;
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.offset = offset;
+			this.md5 = md5;
+			this.location = location;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the last offset acknowledged by the server
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the MD5 checksum of the file if known when the session started, {@code null} otherwise
+		 */
+		public String getMd5() {
+			return md5;
+		}
+
+		public String getLocation() {
+			return location;
+		}
+		
+		/**
+		 * @return true if the local file did not change since the session started
+		 */
+		public boolean isUnchanged (BasicFileAttributes attr) {
+			return attr != null 
+					&& attr.size() == size 
+					&& attr.lastModifiedTime().toMillis() == lastModified ;
+		}
+		
+		private Session withOffset (long newOffset) {
+			return new Session (key, path, size, lastModified, newOffset, md5, location) ;
+		}
+		
+		private String toRecord () {
+			StringBuilder sb = new StringBuilder () ;
+			sb.append(sessionTag).append(separator) ;
+			sb.append(key).append(separator) ;
+			sb.append(size).append(separator) ;
+			sb.append(lastModified).append(separator) ;
+			sb.append(offset).append(separator) ;
+			sb.append((md5 == null) ? ("") : (md5)).append(separator) ;
+			sb.append(location).append(separator) ;
+			// the path comes last, so that it may contain the separator
+			sb.append(path).append("\n") ;
+			return sb.toString() ;
+		}
+	}
+	
+	// guarded by this
+	private Path journalPath = null ;
+	private FileChannel channel = null ;
+	private final Map<String, Session> sessions = new LinkedHashMap<String, Session> () ;
+	private final Set<String> claimed = new HashSet<String> () ;
+	private int records = 0 ;
+	
+	
+	/**
+	 * @return the key of the session uploading the given local file into the given destination 
+	 * (ID of the parent directory, or of the file to update) under the given title
+	 */
+	public static String newKey (String path, String destination, String title) {
+		return Hashing.md5().hashString(String.valueOf(path) + "\n" + String.valueOf(destination) 
+				+ "\n" + String.valueOf(title), StandardCharsets.UTF_8).toString() ;
+	}
+	
+	
+	/**
+	 * Opens the journal in the given directory (if not already opened), replaying the records 
+	 * of the previous runs.
+	 */
+	public synchronized void open (String directory) throws IOException {
+		Preconditions.checkNotNull(directory) ;
+		if (channel != null) {
+			return ;
+		}
+		Path dir = Paths.get(directory) ;
+		Files.createDirectories(dir) ;
+		journalPath = dir.resolve(journalFileName) ;
+		load () ;
+		compact () ;
+		logger.info("Upload session journal " + journalPath + " (" + sessions.size() + " sessions)");
+	}
+	
+	
+	/**
+	 * Closes the journal, forgetting the sessions and the claims (they are replayed 
+	 * when opened again).
+	 */
+	synchronized void close () throws IOException {
+		if (channel != null) {
+			channel.close() ;
+			channel = null ;
+		}
+		journalPath = null ;
+		sessions.clear() ;
+		claimed.clear() ;
+		records = 0 ;
+	}
+	
+	
+	private void load () throws IOException {
+		if (!Files.exists(journalPath)) {
+			return ;
+		}
+		try (BufferedReader in = new BufferedReader (new InputStreamReader (Files.newInputStream(journalPath), StandardCharsets.UTF_8))) {
+			String line ;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(separator, numberOfFields) ;
+				if (fields.length == 2 && endTag.equals(fields[0])) {
+					sessions.remove(fields[1]) ;
+					continue ;
+				}
+				if (fields.length != numberOfFields || !sessionTag.equals(fields[0])) {
+					// most likely a truncated line due to an interruption
+					continue ;
+				}
+				try {
+					sessions.put(fields[1], new Session (fields[1], fields[7], Long.parseLong(fields[2]), Long.parseLong(fields[3]), 
+							Long.parseLong(fields[4]), (fields[5].isEmpty()) ? (null) : (fields[5]), fields[6])) ;
+				} catch (NumberFormatException e) {
+					logger.info("Ignore ill-formed journal line: " + line);
+				}
+			}
+		}
+	}
+	
+	
+	private void compact () throws IOException {
+		if (channel != null) {
+			channel.close() ;
+			channel = null ;
+		}
+		Path tmp = journalPath.resolveSibling(journalPath.getFileName().toString() + ".tmp") ;
+		try (Writer out = new BufferedWriter (new OutputStreamWriter (Files.newOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (Session session : sessions.values()) {
+				out.write(session.toRecord());
+			}
+		}
+		Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE) ;
+		channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND) ;
+		channel.force(true) ;
+		records = sessions.size() ;
+	}
+	
+	
+	private void append (String record) {
+		if (channel == null) {
+			return ;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)) ;
+			while (buffer.hasRemaining()) {
+				channel.write(buffer) ;
+			}
+			channel.force(false) ;
+			if (++records > Math.max(minRecordsBeforeCompaction, 4 * sessions.size())) {
+				compact () ;
+			}
+		} catch (IOException e) {
+			logger.error("Error occurred while writing the upload session journal", e);
+		}
+	}
+	
+	
+	/**
+	 * Claims the session with the given key, if any.
+	 * 
+	 * @return the session, or {@code null} if there is none
+	 * @throws IOException if the session is already claimed by another upload
+	 */
+	public synchronized Session claim (String key) throws IOException {
+		Session session = sessions.get(key) ;
+		if (session == null) {
+			return null ;
+		}
+		if (!claimed.add(key)) {
+			throw new IOException ("The upload of " + session.getPath() + " is already in progress") ;
+		}
+		return session ;
+	}
+	
+	
+	/**
+	 * Claims all the sessions which are not in progress (e.g., the sessions interrupted 
+	 * by the end of the previous run).
+	 */
+	public synchronized List<Session> claimAll () {
+		List<Session> ret = new ArrayList<Session> () ;
+		for (Session session : sessions.values()) {
+			if (claimed.add(session.getKey())) {
+				ret.add(session) ;
+			}
+		}
+		return ret ;
+	}
+	
+	
+	/**
+	 * Records (and claims) a new session.
+	 */
+	public synchronized void begin (String key, String path, BasicFileAttributes attr, String md5, String location) {
+		if (key == null || attr == null || location == null || path.contains("\n") || location.contains(separator)) {
+			return ;
+		}
+		Session session = new Session (key, path, attr.size(), attr.lastModifiedTime().toMillis(), 0, md5, location) ;
+		sessions.put(key, session) ;
+		claimed.add(key) ;
+		append (session.toRecord()) ;
+	}
+	
+	
+	/**
+	 * Records the offset acknowledged by the server.
+	 */
+	public synchronized void update (String key, long offset) {
+		Session session = (key == null) ? (null) : (sessions.get(key)) ;
+		if (session == null || session.getOffset() == offset) {
+			return ;
+		}
+		session = session.withOffset(offset) ;
+		sessions.put(key, session) ;
+		append (session.toRecord()) ;
+	}
+	
+	
+	/**
+	 * Removes the session (the upload completed, or cannot be resumed).
+	 */
+	public synchronized void end (String key) {
+		claimed.remove(key) ;
+		if (key == null || sessions.remove(key) == null) {
+			return ;
+		}
+		append (endTag + separator + key + "\n") ;
+	}
+	
+	
+	/**
+	 * Gives up the claim on the session, which remains in the journal.
+	 */
+	public synchronized void release (String key) {
+		claimed.remove(key) ;
+	}
+}
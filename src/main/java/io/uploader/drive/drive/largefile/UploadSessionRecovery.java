@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.largefile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uploader.drive.config.HasConfiguration;
+import io.uploader.drive.util.FileUtils;
+
+/**
+ * Resumes the uploads that were interrupted (crash, network failure, end of the application)
+ * and recorded in the {@link UploadSessionJournal}.
+ */
+public class UploadSessionRecovery {
+
+	private static final Logger logger = LoggerFactory.getLogger(UploadSessionRecovery.class);
+	
+	private UploadSessionRecovery () {
+		super () ;
+	}
+	
+	
+	/**
+	 * Resumes, one after another, all the sessions left in the journal. The sessions 
+	 * whose file has been modified or removed since, and those which cannot be resumed 
+	 * (e.g., expired), are dropped; only those failing for a transient reason are kept.
+	 * 
+	 * @return the number of uploads successfully completed
+	 */
+	public static int resumeAll (HasConfiguration config) {
+		
+		UploadSessionJournal journal = UploadSessionJournal.INSTANCE ;
+		try {
+			journal.open(config.getDataStoreDirectory()) ;
+		} catch (IOException e) {
+			logger.error("Error occurred while opening the upload session journal", e);
+			return 0 ;
+		}
+		List<UploadSessionJournal.Session> sessions = journal.claimAll() ;
+		// the sessions are claimed again one at a time, so that the user can upload the 
+		// other files meanwhile
+		for (UploadSessionJournal.Session session : sessions) {
+			journal.release(session.getKey()) ;
+		}
+		if (!sessions.isEmpty()) {
+			logger.info("Found " + sessions.size() + " interrupted upload(s)") ;
+		}
+		int completed = 0 ;
+		for (UploadSessionJournal.Session pending : sessions) {
+			UploadSessionJournal.Session session = null ;
+			try {
+				session = journal.claim(pending.getKey()) ;
+			} catch (IOException e) {
+				logger.info("The upload of " + pending.getPath() + " is already in progress") ;
+			}
+			if (session == null) {
+				continue ;
+			}
+			BasicFileAttributes attr = null ;
+			try {
+				attr = FileUtils.getFileAttr(Paths.get(session.getPath())) ;
+			} catch (IOException e) {
+				logger.info("Cannot read the attributes of " + session.getPath() + ": " + e.getMessage()) ;
+			}
+			if (attr == null || !session.isUnchanged(attr)) {
+				logger.info("The file " + session.getPath() + " has changed or been removed, its upload is dropped") ;
+				journal.end(session.getKey()) ;
+				continue ;
+			}
+			try {
+				// the session is released at the end of the upload
+				new GDriveUpload (config, session).uploadFile(false) ;
+				++completed ;
+			} catch (GDriveUpload.TransferException e) {
+				// not resumable: the upload has already removed the session from the journal
+				logger.error("Error occurred while resuming the upload of " + session.getPath(), e);
+			} catch (IOException e) {
+				// e.g., no connection: the session is kept for the next start
+				logger.error("Error occurred while resuming the upload of " + session.getPath(), e);
+			} catch (Throwable e) {
+				// the session would fail again on every start
+				logger.error("Error occurred while resuming the upload of " + session.getPath() + ", the session is dropped", e);
+				journal.end(session.getKey()) ;
+			}
+		}
+		return completed ;
+	}
+}
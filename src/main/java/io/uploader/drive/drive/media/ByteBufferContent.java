@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.util.Preconditions;
+
+/**
+ * Content backed by a region of a (possibly direct) byte buffer. The buffer itself is 
+ * never modified, so the content can be written more than once.
+ */
+class ByteBufferContent extends AbstractInputStreamContent {
+
+	private final ByteBuffer buffer ;
+	
+	public ByteBufferContent (String type, ByteBuffer buffer, int offset, int length) {
+		super (type) ;
+		Preconditions.checkArgument(offset >= 0 && length >= 0 && offset + length <= buffer.capacity());
+		ByteBuffer region = buffer.duplicate() ;
+		region.limit(offset + length) ;
+		region.position(offset) ;
+		this.buffer = region.slice() ;
+	}
+	
+	
+	@Override
+	public long getLength() throws IOException {
+		return buffer.remaining() ;
+	}
+
+	
+	@Override
+	public boolean retrySupported() {
+		return true;
+	}
+
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		final ByteBuffer content = buffer.duplicate() ;
+		return new InputStream () {
+
+			@Override
+			public int read() throws IOException {
+				return (content.hasRemaining()) ? (content.get() & 0xff) : (-1) ;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0 ;
+				}
+				if (!content.hasRemaining()) {
+					return -1 ;
+				}
+				int r = Math.min(len, content.remaining()) ;
+				content.get(b, off, r) ;
+				return r ;
+			}
+			
+			@Override
+			public int available() throws IOException {
+				return content.remaining() ;
+			}
+		} ;
+	}
+	
+	
+	@Override
+	public ByteBufferContent setType(String type) {
+		return (ByteBufferContent) super.setType(type);
+	}
+	
+	
+	@Override
+	public ByteBufferContent setCloseInputStream(boolean closeInputStream) {
+		return (ByteBufferContent) super.setCloseInputStream(closeInputStream);
+	}
+}
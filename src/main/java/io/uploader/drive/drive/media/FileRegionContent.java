@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.util.Preconditions;
+
+/**
+ * Content backed by a region of a file. The bytes are read (by position, the channel can be 
+ * shared) each time the content is written, hence no copy of the region is kept in memory 
+ * and a retry simply reads the region again.
+ */
+class FileRegionContent extends AbstractInputStreamContent {
+
+	/**
+	 * MD5 checksum of a file computed from its regions as they are read. The bytes are 
+	 * taken in order: the bytes read again (e.g., retry) are skipped, and a gap makes 
+	 * the checksum unavailable.
+	 */
+	static class Md5 {
+		
+		private final MessageDigest digest = DigestUtils.getMd5Digest() ;
+		private long next = 0 ;
+		private boolean valid = true ;
+		private String md5 = null ;
+		
+		synchronized void update (long position, byte[] b, int off, int len) {
+			if (md5 != null) {
+				return ;
+			}
+			long skip = next - position ;
+			if (skip < 0) {
+				valid = false ;
+				return ;
+			}
+			if (skip < len) {
+				digest.update(b, off + (int) skip, len - (int) skip);
+				next = position + len ;
+			}
+		}
+		
+		/**
+		 * @return the checksum of the first {@code length} bytes, or {@code null} if they were 
+		 * not all read in order.
+		 */
+		synchronized String get (long length) {
+			if (!valid || next != length) {
+				return null ;
+			}
+			if (md5 == null) {
+				md5 = Hex.encodeHexString(digest.digest()) ;
+			}
+			return md5 ;
+		}
+	}
+	
+	private final FileChannel channel ;
+	private final long position ;
+	private final long length ;
+	private final Md5 md5 ;
+	
+	/**
+	 * @param md5 the checksum fed with the bytes of the region, or {@code null} for none
+	 */
+	public FileRegionContent (String type, FileChannel channel, long position, long length, Md5 md5) {
+		super (type) ;
+		Preconditions.checkArgument(position >= 0 && length >= 0);
+		this.channel = Preconditions.checkNotNull(channel) ;
+		this.position = position ;
+		this.length = length ;
+		this.md5 = md5 ;
+	}
+	
+	
+	@Override
+	public long getLength() throws IOException {
+		return length ;
+	}
+
+	
+	@Override
+	public boolean retrySupported() {
+		return true;
+	}
+
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new InputStream () {
+			
+			private long next = position ;
+			private final long end = position + length ;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1] ;
+				return (read (b, 0, 1) < 0) ? (-1) : (b[0] & 0xff) ;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0 ;
+				}
+				if (next >= end) {
+					return -1 ;
+				}
+				int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - next)), next) ;
+				if (r < 0) {
+					throw new IOException ("The file has been truncated") ;
+				}
+				if (md5 != null) {
+					md5.update(next, b, off, r);
+				}
+				next += r ;
+				return r ;
+			}
+			
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(Integer.MAX_VALUE, end - next) ;
+			}
+		} ;
+	}
+	
+	
+	@Override
+	public FileRegionContent setType(String type) {
+		return (FileRegionContent) super.setType(type);
+	}
+	
+	
+	@Override
+	public FileRegionContent setCloseInputStream(boolean closeInputStream) {
+		return (FileRegionContent) super.setCloseInputStream(closeInputStream);
+	}
+}
@@ -27,7 +27,6 @@ package io.uploader.drive.drive.media;
 
 import com.google.api.client.googleapis.MethodOverride;
 import com.google.api.client.http.AbstractInputStreamContent;
-import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.EmptyContent;
 import com.google.api.client.http.GZipEncoding;
 import com.google.api.client.http.GenericUrl;
@@ -44,15 +43,22 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.MultipartContent;
 import com.google.api.client.util.Beta;
-import com.google.api.client.util.ByteStreams;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
 
+import io.uploader.drive.drive.ChunkBufferPool;
+import io.uploader.drive.drive.ChunkSizer;
+import io.uploader.drive.drive.DriveFileContent;
+import io.uploader.drive.util.FileUtils.InputStreamProgressFilter;
+
 import org.apache.commons.io.input.BoundedInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -226,6 +232,19 @@ public final class MediaHttpUploader {
 	 */
 	private InputStream contentInputStream;
 
+	/**
+	 * The channel of the file of the media content, if it is backed by a file
+	 * (in which case the chunks are read from the file, and
+	 * {@link #contentInputStream} is not used), {@code null} otherwise.
+	 */
+	private FileChannel contentChannel;
+
+	/**
+	 * MD5 checksum of the file of the media content, computed from the chunks
+	 * as they are sent, or {@code null} if the content is not backed by a file.
+	 */
+	private FileRegionContent.Md5 contentMd5;
+
 	/**
 	 * Determines whether direct media upload is enabled or disabled. If value
 	 * is set to {@code true} then a direct upload will be done where the whole
@@ -263,12 +282,25 @@ public final class MediaHttpUploader {
 	 */
 	private int chunkSize = DEFAULT_CHUNK_SIZE;
 
+	/**
+	 * Adjusts the size of the chunks along the upload or {@code null} to
+	 * always use {@link #chunkSize}.
+	 */
+	private ChunkSizer chunkSizer;
+
 	/**
 	 * Used to cache a single byte when the media content length is unknown or
 	 * {@code null} for none.
 	 */
 	private Byte cachedByte;
 
+	/**
+	 * Buffer through which the media content stream is copied into the
+	 * content buffer, allocated once per upload or {@code null} before the
+	 * first read.
+	 */
+	private byte[] transferBuffer;
+
 	/**
 	 * The number of bytes the client had sent to the server so far or {@code 0}
 	 * for none. It is used for resumable media upload when the media content
@@ -286,11 +318,11 @@ public final class MediaHttpUploader {
 	/**
 	 * The content buffer of the current request or {@code null} for none. It is
 	 * used for resumable media upload when the media content length is not
-	 * specified. It is instantiated for every request in
-	 * {@link #setContentAndHeadersOnCurrentRequest} and is set to {@code null}
-	 * when the request is completed in {@link #upload}.
+	 * specified. It is borrowed from the {@link ChunkBufferPool} in
+	 * {@link #setContentAndHeadersOnCurrentRequest} and is given back (and set
+	 * to {@code null}) when the request is completed in {@link #upload}.
 	 */
-	private byte currentRequestContentBuffer[];
+	private ByteBuffer currentRequestContentBuffer;
 
 	/**
 	 * Whether to disable GZip compression of HTTP content.
@@ -459,9 +491,17 @@ public final class MediaHttpUploader {
 			initialResponse.disconnect();
 		}
 
-		// Convert media content into a byte stream to upload in chunks.
-		contentInputStream = mediaContent.getInputStream();
-		if (!contentInputStream.markSupported() && isMediaLengthKnown()) {
+		if (mediaContent instanceof DriveFileContent) {
+			// The chunks are regions of the file: a retry reads the region
+			// again, nothing is buffered.
+			contentChannel = FileChannel.open(((DriveFileContent) mediaContent)
+					.getFile().toPath(), StandardOpenOption.READ);
+			contentMd5 = new FileRegionContent.Md5();
+		} else {
+			// Convert media content into a byte stream to upload in chunks.
+			contentInputStream = mediaContent.getInputStream();
+		}
+		if (contentInputStream != null && !contentInputStream.markSupported() && isMediaLengthKnown()) {
 			// If we know the media content length then wrap the stream into a
 			// Buffered input stream to
 			// support the {@link InputStream#mark} and {@link
@@ -471,116 +511,143 @@ public final class MediaHttpUploader {
 		}
 
 		HttpResponse response = null ;
-		// Upload the media content in chunks.
-		while (true) {
-			currentRequest = requestFactory.buildPutRequest(uploadUrl, null);
-			setContentAndHeadersOnCurrentRequest();
-			// set mediaErrorHandler as I/O exception handler and as
-			// unsuccessful response handler for
-			// calling to serverErrorCallback on an I/O exception or an abnormal
-			// HTTP response
-			AtomicInteger httpErrorCounter = new AtomicInteger (0) ;
-			new MediaUploadErrorHandler(this, currentRequest, httpErrorCounter);
-
-			AtomicInteger tryCounter = new AtomicInteger (0) ;
+		try {
+			// Upload the media content in chunks.
 			while (true) {
-				try {
-					if (isMediaLengthKnown()) {
-						// TODO(rmistry): Support gzipping content for the case where
-						// media content length is
-						// known
-						// (https://code.google.com/p/google-api-java-client/issues/detail?id=691).
-						response = executeCurrentRequestWithoutGZip(currentRequest);
-						break ;
-					} else {
-						response = executeCurrentRequest(currentRequest);
-						break ;
+				currentRequest = requestFactory.buildPutRequest(uploadUrl, null);
+				setContentAndHeadersOnCurrentRequest();
+				// set mediaErrorHandler as I/O exception handler and as
+				// unsuccessful response handler for
+				// calling to serverErrorCallback on an I/O exception or an abnormal
+				// HTTP response
+				AtomicInteger httpErrorCounter = new AtomicInteger (0) ;
+				new MediaUploadErrorHandler(this, currentRequest, httpErrorCounter);
+
+				AtomicInteger tryCounter = new AtomicInteger (0) ;
+				long chunkStartTime = System.nanoTime();
+				while (true) {
+					try {
+						if (isMediaLengthKnown()) {
+							// TODO(rmistry): Support gzipping content for the case where
+							// media content length is
+							// known
+							// (https://code.google.com/p/google-api-java-client/issues/detail?id=691).
+							response = executeCurrentRequestWithoutGZip(currentRequest);
+							break ;
+						} else {
+							response = executeCurrentRequest(currentRequest);
+							break ;
+						}
+					} catch (Throwable e) {
+						logger.error("Error occurred while uploading", e);
+						if (tryCounter.getAndIncrement() >= 5) {
+							logger.error("Could not be recovered...");
+							throw e ;
+						}
+						logger.error("Retry (" + tryCounter.get() + " times)", e);
 					}
-				} catch (Throwable e) {
-					logger.error("Error occurred while uploading", e);
-					if (tryCounter.getAndIncrement() >= 5) {
-						logger.error("Could not be recovered...");
-						throw e ;
-					}
-					logger.error("Retry (" + tryCounter.get() + " times)", e);
 				}
-			}
 
-			boolean returningResponse = false;
-			try {
-				if (response.isSuccessStatusCode()) {
-					totalBytesServerReceived = getMediaContentLength();
-					if (mediaContent.getCloseInputStream()) {
-						contentInputStream.close();
+				if (chunkSizer != null) {
+					if (httpErrorCounter.get() > 0 || tryCounter.get() > 0) {
+						chunkSizer.onChunkFailed();
+					} else if (response.isSuccessStatusCode() || response.getStatusCode() == 308) {
+						chunkSizer.onChunkSent(currentChunkLength, System.nanoTime() - chunkStartTime);
 					}
-					updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
-					returningResponse = true;
-					return response;
 				}
 
-				int statusCode = response.getStatusCode() ;
-				if (statusCode != 308) {
-					// https://developers.google.com/drive/web/manage-uploads#resume-upload
+				boolean returningResponse = false;
+				try {
+					if (response.isSuccessStatusCode()) {
+						totalBytesServerReceived = getMediaContentLength();
+						if (contentInputStream != null && mediaContent.getCloseInputStream()) {
+							contentInputStream.close();
+						}
+						updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
 						returningResponse = true;
 						return response;
-				} else {
-					httpErrorCounter.set(0);
-				}
+					}
 
-				// Check to see if the upload URL has changed on the server.
-				String updatedUploadUrl = response.getHeaders().getLocation();
-				if (updatedUploadUrl != null) {
-					uploadUrl = new GenericUrl(updatedUploadUrl);
-				}
+					int statusCode = response.getStatusCode() ;
+					if (statusCode != 308) {
+						// https://developers.google.com/drive/web/manage-uploads#resume-upload
+							returningResponse = true;
+							return response;
+					} else {
+						httpErrorCounter.set(0);
+					}
 
-				// we check the amount of bytes the server received so far,
-				// because the server may process
-				// fewer bytes than the amount of bytes the client had sent
-				long newBytesServerReceived = getNextByteIndex(response
-						.getHeaders().getRange());
-				// the server can receive any amount of bytes from 0 to current
-				// chunk length
-				long currentBytesServerReceived = newBytesServerReceived
-						- totalBytesServerReceived;
-				Preconditions.checkState(currentBytesServerReceived >= 0
-						&& currentBytesServerReceived <= currentChunkLength);
-				long copyBytes = currentChunkLength
-						- currentBytesServerReceived;
-				if (isMediaLengthKnown()) {
-					if (copyBytes > 0) {
-						// If the server didn't receive all the bytes the client
-						// sent the current position of
-						// the input stream is incorrect. So we should reset the
-						// stream and skip those bytes
-						// that the server had already received.
-						// Otherwise (the server got all bytes the client sent),
-						// the stream is in its right
-						// position, and we can continue from there
-						contentInputStream.reset();
-						long actualSkipValue = contentInputStream
-								.skip(currentBytesServerReceived);
-						Preconditions
-								.checkState(currentBytesServerReceived == actualSkipValue);
+					// Check to see if the upload URL has changed on the server.
+					String updatedUploadUrl = response.getHeaders().getLocation();
+					if (updatedUploadUrl != null) {
+						uploadUrl = new GenericUrl(updatedUploadUrl);
 					}
-				} else if (copyBytes == 0) {
-					// server got all the bytes, so we don't need to use this
-					// buffer. Otherwise, we have to
-					// keep the buffer and copy part (or all) of its bytes to
-					// the stream we are sending to the
-					// server
-					currentRequestContentBuffer = null;
-				}
-				totalBytesServerReceived = newBytesServerReceived;
 
-				updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
-			} finally {
-				if (!returningResponse) {
-					response.disconnect();
+					// we check the amount of bytes the server received so far,
+					// because the server may process
+					// fewer bytes than the amount of bytes the client had sent
+					long newBytesServerReceived = getNextByteIndex(response
+							.getHeaders().getRange());
+					// the server can receive any amount of bytes from 0 to current
+					// chunk length
+					long currentBytesServerReceived = newBytesServerReceived
+							- totalBytesServerReceived;
+					Preconditions.checkState(currentBytesServerReceived >= 0
+							&& currentBytesServerReceived <= currentChunkLength);
+					long copyBytes = currentChunkLength
+							- currentBytesServerReceived;
+					if (contentChannel != null) {
+						// the next chunk starts where the server stopped
+					} else if (isMediaLengthKnown()) {
+						if (copyBytes > 0) {
+							// If the server didn't receive all the bytes the client
+							// sent the current position of
+							// the input stream is incorrect. So we should reset the
+							// stream and skip those bytes
+							// that the server had already received.
+							// Otherwise (the server got all bytes the client sent),
+							// the stream is in its right
+							// position, and we can continue from there
+							contentInputStream.reset();
+							long actualSkipValue = contentInputStream
+									.skip(currentBytesServerReceived);
+							Preconditions
+									.checkState(currentBytesServerReceived == actualSkipValue);
+						}
+					} else if (copyBytes == 0) {
+						// server got all the bytes, so we don't need to use this
+						// buffer. Otherwise, we have to
+						// keep the buffer and copy part (or all) of its bytes to
+						// the stream we are sending to the
+						// server
+						releaseContentBuffer();
+					}
+					totalBytesServerReceived = newBytesServerReceived;
+
+					updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
+				} finally {
+					if (!returningResponse) {
+						response.disconnect();
+					}
 				}
 			}
+		} finally {
+			releaseContentBuffer () ;
+			if (contentChannel != null) {
+				contentChannel.close();
+				contentChannel = null;
+			}
 		}
 	}
 
+	/**
+	 * Gives the content buffer (if any) back to the pool.
+	 */
+	private void releaseContentBuffer() {
+		ChunkBufferPool.INSTANCE.release(currentRequestContentBuffer);
+		currentRequestContentBuffer = null;
+	}
+
 	/**
 	 * @return {@code true} if the media length is known, otherwise
 	 *         {@code false}
@@ -687,17 +754,21 @@ public final class MediaHttpUploader {
 		if (isMediaLengthKnown()) {
 			// We know exactly what the blockSize will be because we know the
 			// media content length.
-			blockSize = (int) Math.min(chunkSize, getMediaContentLength()
+			blockSize = (int) Math.min(getNextChunkSize(), getMediaContentLength()
 					- totalBytesServerReceived);
 		} else {
 			// Use the chunkSize as the blockSize because we do know what what
 			// it is yet.
-			blockSize = chunkSize;
+			blockSize = getNextChunkSize();
 		}
 
 		AbstractInputStreamContent contentChunk;
 		int actualBlockSize = blockSize;
-		if (isMediaLengthKnown()) {
+		if (contentChannel != null) {
+			contentChunk = new FileRegionContent(mediaContent.getType(),
+					contentChannel, totalBytesServerReceived, blockSize, contentMd5);
+			mediaContentLengthStr = String.valueOf(getMediaContentLength());
+		} else if (isMediaLengthKnown()) {
 			// Mark the current position in case we need to retry the request.
 			contentInputStream.mark(blockSize);
 
@@ -727,9 +798,9 @@ public final class MediaHttpUploader {
 			if (currentRequestContentBuffer == null) {
 				bytesAllowedToRead = cachedByte == null ? blockSize + 1
 						: blockSize;
-				currentRequestContentBuffer = new byte[blockSize + 1];
+				currentRequestContentBuffer = ChunkBufferPool.INSTANCE.acquire(blockSize + 1);
 				if (cachedByte != null) {
-					currentRequestContentBuffer[0] = cachedByte;
+					currentRequestContentBuffer.put(0, cachedByte);
 				}
 			} else {
 				// currentRequestContentBuffer is not null that means one of the
@@ -749,20 +820,19 @@ public final class MediaHttpUploader {
 				// shift copyBytes bytes to the beginning - those are the bytes
 				// which weren't received by
 				// the server in the last chunk.
-				System.arraycopy(currentRequestContentBuffer,
-						currentChunkLength - copyBytes,
-						currentRequestContentBuffer, 0, copyBytes);
+				currentRequestContentBuffer.limit(currentChunkLength);
+				currentRequestContentBuffer.position(currentChunkLength - copyBytes);
+				currentRequestContentBuffer.compact();
 				if (cachedByte != null) {
 					// add the last cached byte to the buffer
-					currentRequestContentBuffer[copyBytes] = cachedByte;
+					currentRequestContentBuffer.put(copyBytes, cachedByte);
 				}
 
 				bytesAllowedToRead = blockSize - copyBytes;
 			}
 
-			actualBytesRead = ByteStreams.read(contentInputStream,
-					currentRequestContentBuffer, blockSize + 1
-							- bytesAllowedToRead, bytesAllowedToRead);
+			actualBytesRead = readContent(blockSize + 1 - bytesAllowedToRead,
+					bytesAllowedToRead);
 
 			if (actualBytesRead < bytesAllowedToRead) {
 				actualBlockSize = copyBytes + Math.max(0, actualBytesRead);
@@ -780,10 +850,10 @@ public final class MediaHttpUploader {
 							.valueOf(totalBytesServerReceived + actualBlockSize);
 				}
 			} else {
-				cachedByte = currentRequestContentBuffer[blockSize];
+				cachedByte = currentRequestContentBuffer.get(blockSize);
 			}
 
-			contentChunk = new ByteArrayContent(mediaContent.getType(),
+			contentChunk = new ByteBufferContent(mediaContent.getType(),
 					currentRequestContentBuffer, 0, actualBlockSize);
 			totalBytesClientSent = totalBytesServerReceived + actualBlockSize;
 		}
@@ -801,6 +871,44 @@ public final class MediaHttpUploader {
 		}
 	}
 
+	/**
+	 * Returns the size of the next chunk. When some bytes of the current
+	 * content buffer must be sent again, the chunk cannot be larger than that
+	 * buffer.
+	 */
+	private int getNextChunkSize() {
+		int size = (chunkSizer == null) ? chunkSize : chunkSizer.getChunkSize();
+		if (currentRequestContentBuffer != null) {
+			size = Math.min(size, currentRequestContentBuffer.capacity() - 1);
+		}
+		return size;
+	}
+
+	/**
+	 * Reads up to {@code length} bytes of the media content into the content
+	 * buffer, starting at {@code offset}; fewer bytes are read only when the
+	 * end of the stream is reached.
+	 *
+	 * @return the number of bytes read
+	 */
+	private int readContent(int offset, int length) throws IOException {
+		ByteBuffer target = currentRequestContentBuffer.duplicate();
+		target.limit(offset + length);
+		target.position(offset);
+		if (transferBuffer == null) {
+			transferBuffer = new byte[64 * KB];
+		}
+		while (target.hasRemaining()) {
+			int r = contentInputStream.read(transferBuffer, 0,
+					Math.min(transferBuffer.length, target.remaining()));
+			if (r < 0) {
+				break;
+			}
+			target.put(transferBuffer, 0, r);
+		}
+		return target.position() - offset;
+	}
+
 	/**
 	 * {@link Beta} <br/>
 	 * The call back method that will be invoked on a server error or an I/O
@@ -956,6 +1064,26 @@ public final class MediaHttpUploader {
 		return chunkSize;
 	}
 
+	/**
+	 * Sets the {@link ChunkSizer} that adjusts the size of the chunks along
+	 * the upload from the measured throughput and failures, or {@code null}
+	 * to use the fixed {@link #getChunkSize() chunk size}.
+	 */
+	public MediaHttpUploader setChunkSizer(ChunkSizer chunkSizer) {
+		this.chunkSizer = chunkSizer;
+		return this;
+	}
+
+	/**
+	 * Returns the MD5 checksum of the media content computed from the chunks
+	 * sent, or {@code null} if the content is not backed by a file or has not
+	 * been entirely sent.
+	 */
+	public String getContentMd5() throws IOException {
+		return (contentMd5 == null) ? null : contentMd5
+				.get(getMediaContentLength());
+	}
+
 	/**
 	 * Returns whether to disable GZip compression of HTTP content.
 	 *
@@ -1072,6 +1200,17 @@ public final class MediaHttpUploader {
 		if (progressListener != null) {
 			progressListener.progressChanged(this);
 		}
+		if (contentChannel != null) {
+			// the content stream, which reports the progress of a file, is
+			// not read
+			InputStreamProgressFilter.StreamProgressCallback callback = ((DriveFileContent) mediaContent)
+					.getProgressCallback();
+			long length = getMediaContentLength();
+			if (callback != null) {
+				callback.onStreamProgress((length <= 0) ? (1.0)
+						: (totalBytesServerReceived / (double) length));
+			}
+		}
 	}
 
 	/**
@@ -25,13 +25,17 @@
 
 package io.uploader.drive.drive.media;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpIOExceptionHandler;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Beta;
 import com.google.api.client.util.Preconditions;
 
+import io.uploader.drive.drive.ConcurrencyController;
+
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -122,6 +126,13 @@ class MediaUploadErrorHandler implements HttpUnsuccessfulResponseHandler,
 		// abnormal response was handled, or call it regardless
 		
 		int statusCode = response.getStatusCode() ;
+		if (statusCode == 403) {
+			// whether it is a rate limit is given by the reason of the error (JSON content)
+			ConcurrencyController.INSTANCE.onError(GoogleJsonResponseException.from(
+					JacksonFactory.getDefaultInstance(), response)) ;
+		} else {
+			ConcurrencyController.INSTANCE.onResponse(statusCode, null) ;
+		}
 		boolean retry = false ;
 		
 		StringBuilder sb = new StringBuilder () ;
@@ -65,6 +65,8 @@ public class DriveTaskPanelViewController implements Initializable {
 	
 	@FXML private TableColumn<DriveTaskModel, Double> progressTotalColumn;  
 	@FXML private TableColumn<DriveTaskModel, Double> progressCurrentColumn;
+	@FXML private TableColumn<DriveTaskModel, String> throughputColumn;  
+	@FXML private TableColumn<DriveTaskModel, String> etaColumn;  
 	@FXML private TableColumn<DriveTaskModel, String> statusColumn;  
 	@FXML private TableColumn<DriveTaskModel, String> optionsColumn;
 	      
@@ -92,6 +94,10 @@ public class DriveTaskPanelViewController implements Initializable {
 		progressCurrentColumn.setCellValueFactory(new PropertyValueFactory("currentProgress"));  
 		progressCurrentColumn.setCellFactory(ProgressBarTableCell.<DriveTaskModel>forTableColumn());  
         
+        throughputColumn.setCellValueFactory(new PropertyValueFactory("throughput")); 
+        
+        etaColumn.setCellValueFactory(new PropertyValueFactory("eta")); 
+        
         statusColumn.setCellValueFactory(new PropertyValueFactory("status")); 
         
         optionsColumn.setCellValueFactory(new PropertyValueFactory("options")); 
@@ -32,7 +32,8 @@ public interface DriveTaskFactory extends Observer {
 			StopRequester stopRequester, HasStatusReporter statusReporter);
 	
 	public HasStatusReporter buildStatusReporter(DoubleProperty total,
-			DoubleProperty current, StringProperty status);
+			DoubleProperty current, StringProperty status, 
+			StringProperty throughput, StringProperty eta);
 
 	public ListeningExecutorService getExecutor () ;
 
@@ -31,6 +31,7 @@ import io.uploader.drive.drive.DriveOperations.HasStatusReporter;
 import io.uploader.drive.drive.DriveOperations.StopRequester;
 import io.uploader.drive.task.DriveTask;
 import io.uploader.drive.task.UploadDirectoryDriveTask;
+import io.uploader.drive.util.FileUtils;
 import io.uploader.drive.util.ThreadUtils;
 
 import com.google.api.services.drive.Drive;
@@ -62,7 +63,8 @@ public class DriveTaskFactoryImpl implements DriveTaskFactory {
 
 	@Override
 	public HasStatusReporter buildStatusReporter(final DoubleProperty total,
-			final DoubleProperty current, final StringProperty status) {
+			final DoubleProperty current, final StringProperty status, 
+			final StringProperty throughput, final StringProperty eta) {
 
 		return new DriveOperations.HasStatusReporter() {
 			
@@ -89,6 +91,22 @@ public class DriveTaskFactoryImpl implements DriveTaskFactory {
 				}
 				current.set(p);
 			}
+
+			@Override
+			public void setThroughput(double bytesPerSecond) {
+				if (throughput == null) {
+					return ;
+				}
+				throughput.set((bytesPerSecond < 0) ? ("") : (FileUtils.humanReadableByteCount((long) bytesPerSecond, true) + "/s"));
+			}
+
+			@Override
+			public void setEstimatedTimeRemaining(long seconds) {
+				if (eta == null) {
+					return ;
+				}
+				eta.set((seconds < 0) ? ("") : (String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60)));
+			}
 		};
 	}
 
@@ -45,6 +45,8 @@ public class DriveTaskModel {
 	private final DoubleProperty totalProgress = new SimpleDoubleProperty ();
 	private final DoubleProperty currentProgress = new SimpleDoubleProperty ();
 	private final StringProperty status = new SimpleStringProperty ("Waiting...");
+	private final StringProperty throughput = new SimpleStringProperty ("");
+	private final StringProperty eta = new SimpleStringProperty ("");
 	private final DriveTask<DriveOperations.OperationResult> driveTask;
 	private ListenableFuture<DriveOperations.OperationResult> result = null ;
 
@@ -58,7 +60,7 @@ public class DriveTaskModel {
 	public DriveTaskModel (DriveTaskFactory taskFactory, DriveDirectory driveDir, String srcDir, boolean overwrite) {
 		super () ;
 		this.taskFactory = taskFactory ;
-		HasStatusReporter statusReporter = taskFactory.buildStatusReporter(totalProgress, currentProgress, status) ;
+		HasStatusReporter statusReporter = taskFactory.buildStatusReporter(totalProgress, currentProgress, status, throughput, eta) ;
 		StopRequester stopRequester = taskFactory.buildStopRequester (stopRequested) ;
 		this.driveTask = taskFactory.buildUploadDirectoryDriveTask(driveDir, srcDir, overwrite, stopRequester, statusReporter) ;
 		
@@ -149,6 +151,22 @@ public class DriveTaskModel {
 		status.set(s);
 	}
 	
+	public String getThroughput() {
+		return throughput.get();
+	}
+	
+	public StringProperty throughputProperty() {
+		return throughput;
+	}
+	
+	public String getEta() {
+		return eta.get();
+	}
+	
+	public StringProperty etaProperty() {
+		return eta;
+	}
+	
 	public boolean getStopRequested() {
 		return stopRequested.get();
 	}
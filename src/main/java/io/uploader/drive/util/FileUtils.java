@@ -110,6 +110,48 @@ public class FileUtils {
 	}
 	
 	
+	/**
+	 * Listener notified of each entry of a tree as soon as it is visited.
+	 * A directory is always notified before its content.
+	 */
+	public static interface FileTreeListener {
+		
+		/**
+		 * @return {@code false} to stop the walk.
+		 */
+		public boolean onDirectory (Path dir, BasicFileAttributes attr) ;
+		
+		/**
+		 * @return {@code false} to stop the walk.
+		 */
+		public boolean onFile (Path file, BasicFileAttributes attr) ;
+	}
+	
+	
+	public static void walkFileTree (Path srcDir, final FileTreeListener listener) throws IOException
+	{
+		if (listener == null)
+			throw new AssertionError ("walkFileTree cannot accept null listener.") ;
+		if (srcDir == null || !Files.isDirectory(srcDir))
+			return ;
+		
+		Files.walkFileTree(srcDir, new SimpleFileVisitor<Path> () {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attr) 
+			{
+				return (listener.onFile(file, attr)) ? (CONTINUE) : (TERMINATE) ;
+			}
+			
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) 
+			{
+				return (listener.onDirectory(dir, attr)) ? (CONTINUE) : (TERMINATE) ;
+			}
+		});
+	}
+	
+	
 	public static BasicFileAttributes getFileAttr (Path path) throws IOException
 	{
 		BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class) ;
@@ -89,6 +89,19 @@ public class ConfigTest {
     }
     
     
+    @Test
+    public void shouldHaveUploadSettings() {
+    	assertTrue (6 == Configuration.INSTANCE.getUploadSettings().getConcurrency()) ;
+    	assertTrue (12 == Configuration.INSTANCE.getUploadSettings().getMaxConcurrency()) ;
+    	assertTrue (Configuration.INSTANCE.getUploadSettings().isAdaptiveConcurrency()) ;
+    	assertFalse (Configuration.INSTANCE.getUploadSettings().isSyncManifestEnabled()) ;
+    	assertTrue (2048 * 1024 == Configuration.INSTANCE.getUploadSettings().getMinChunkSize()) ;
+    	// rounded down to a multiple of 512 KB
+    	assertTrue (19968 * 1024 == Configuration.INSTANCE.getUploadSettings().getMaxChunkSize()) ;
+    	assertTrue (Configuration.INSTANCE.getUploadSettings().isMediaUploaderEnabled()) ;
+    }
+    
+    
     private void verifyProxy (HasProxySettings proxySettings, boolean isActivate, String host, int port, String username, String password)
     {
 		assertTrue (proxySettings.isActive() == isActivate) ;
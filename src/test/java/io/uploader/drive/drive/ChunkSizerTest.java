@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ChunkSizerTest {
+	
+	private static final int MB = 1024 * 1024 ;
+	
+	
+    @Test
+    public void shouldGrowOnFastLinksUpToTheCeiling() {
+    	ChunkSizer sizer = new ChunkSizer (MB, 64 * MB, 10 * MB) ;
+    	int previous = sizer.getChunkSize() ;
+    	for (int i = 0 ; i < 10 ; ++i) {
+    		// 100 MB/s
+    		sizer.onChunkSent(sizer.getChunkSize(), TimeUnit.MILLISECONDS.toNanos(sizer.getChunkSize() / (100 * 1024))) ;
+    		assertTrue (sizer.getChunkSize() <= 2 * previous) ;
+    		assertEquals (0, sizer.getChunkSize() % ChunkSizer.unit) ;
+    		previous = sizer.getChunkSize() ;
+    	}
+    	assertEquals (64 * MB, sizer.getChunkSize()) ;
+    }
+    
+    
+    @Test
+    public void shouldShrinkOnSlowOrFlakyLinksDownToTheFloor() {
+    	ChunkSizer sizer = new ChunkSizer (MB, 64 * MB, 10 * MB) ;
+    	sizer.onChunkFailed() ;
+    	assertEquals (5 * MB, sizer.getChunkSize()) ;
+    	for (int i = 0 ; i < 10 ; ++i) {
+    		// 10 KB/s
+    		sizer.onChunkSent(sizer.getChunkSize(), TimeUnit.SECONDS.toNanos(sizer.getChunkSize() / (10 * 1024))) ;
+    		assertEquals (0, sizer.getChunkSize() % ChunkSizer.unit) ;
+    	}
+    	assertEquals (MB, sizer.getChunkSize()) ;
+    	sizer.onChunkFailed() ;
+    	assertEquals (MB, sizer.getChunkSize()) ;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class DriveBatcherTest {
+	
+	private LocalDriveEndpoint endpoint = null ;
+	private Drive client = null ;
+	private DriveBatcher batcher = null ;
+	
+	
+    @Before
+    public void init() throws Exception {
+    	endpoint = new LocalDriveEndpoint () ;
+    	client = endpoint.newClient() ;
+    	batcher = new DriveBatcher (client) ;
+    }
+    
+    
+    @After
+    public void cleanup() {
+    	batcher.shutdown();
+    	endpoint.stop();
+    }
+    
+    
+    @Test
+    public void shouldGroupRequestsIntoBatches() throws Exception {
+    	final int numberOfDirectories = 250 ;
+    	List<ListenableFuture<File>> futures = new ArrayList<ListenableFuture<File>> () ;
+    	for (int i = 0 ; i < numberOfDirectories ; ++i) {
+    		futures.add(batcher.submit(DriveUtils.newInsertDirectoryRequest(client, "dir-" + i, null, DriveUtils.newId("parent")))) ;
+    	}
+    	for (int i = 0 ; i < numberOfDirectories ; ++i) {
+    		File dir = futures.get(i).get() ;
+    		assertEquals ("dir-" + i, dir.getTitle()) ;
+    		assertTrue (dir.getId().startsWith("id-")) ;
+    	}
+    	int total = endpoint.getSingleRequestCount() ;
+    	for (int size : endpoint.getBatchSizes()) {
+    		assertTrue (size <= DriveBatcher.maxBatchSize) ;
+    		total += size ;
+    	}
+    	assertEquals (numberOfDirectories, total) ;
+    	assertTrue (endpoint.getBatchSizes().size() + endpoint.getSingleRequestCount() < numberOfDirectories / 10) ;
+    }
+    
+    
+    @Test
+    public void shouldFailOnlyTheRejectedRequest() throws Exception {
+    	ListenableFuture<File> ok = batcher.submit(DriveUtils.newInsertDirectoryRequest(client, "dir", null, null)) ;
+    	ListenableFuture<File> rejected = batcher.submit(DriveUtils.newInsertDirectoryRequest(client, LocalDriveEndpoint.failurePrefix + "-dir", null, null)) ;
+    	ListenableFuture<File> trashed = batcher.submit(DriveUtils.newTrashFileRequest(client, DriveUtils.newId("trashed-id"))) ;
+    	assertEquals ("dir", ok.get().getTitle()) ;
+    	assertEquals ("trashed-id", trashed.get().getId()) ;
+    	try {
+    		rejected.get() ;
+    		fail ("The request should have been rejected") ;
+    	} catch (ExecutionException e) {
+    		assertTrue (e.getCause() instanceof HttpResponseException) ;
+    		assertEquals (403, ((HttpResponseException) e.getCause()).getStatusCode()) ;
+    	}
+    }
+    
+    
+    @Test
+    public void shouldSendLoneRequestAsIs() throws Exception {
+    	File dir = batcher.execute(DriveUtils.newInsertDirectoryRequest(client, "alone", null, null)) ;
+    	assertEquals ("alone", dir.getTitle()) ;
+    	assertEquals (1, endpoint.getSingleRequestCount()) ;
+    	assertTrue (endpoint.getBatchSizes().isEmpty()) ;
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void shouldSendBatchWhileTheCallerHoldsThePermit() throws Exception {
+    	// a single permit, held by the caller: the batch can only go if the caller gives it back
+    	ConcurrencyController.INSTANCE.configure(1, 1, false) ;
+    	DriveBatcher controlled = new DriveBatcher (client, ConcurrencyController.INSTANCE) ;
+    	ConcurrencyController.INSTANCE.acquire() ;
+    	try {
+    		assertEquals ("dir", controlled.execute(DriveUtils.newInsertDirectoryRequest(client, "dir", null, null)).getTitle()) ;
+    	} finally {
+    		ConcurrencyController.INSTANCE.release() ;
+    		controlled.shutdown() ;
+    	}
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import io.uploader.drive.drive.DriveOperations.OperationCompletionStatus;
+import io.uploader.drive.drive.DriveOperations.OperationResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DriveOperationsTest {
+	
+	private static final int numberOfDirectories = 20 ;
+	private static final int numberOfSubDirectories = 3 ;
+	
+	private LocalDriveEndpoint endpoint = null ;
+	private Drive client = null ;
+	private LocalConfiguration config = null ;
+	private Path srcDir = null ;
+	
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+	
+	
+    @Before
+    public void init() throws Exception {
+    	endpoint = new LocalDriveEndpoint () ;
+    	client = endpoint.newClient() ;
+    	config = new LocalConfiguration ()
+			.setUploadProperty("concurrency", 4)
+			.setUploadProperty("maxConcurrency", 4)
+			.setUploadProperty("adaptive", false)
+			.setUploadProperty("manifest", false)
+			.setUploadProperty("dedup", false) ;
+    	
+    	// a tree of directories only, with many siblings
+    	srcDir = tmpFolder.newFolder("tree").toPath() ;
+    	for (int i = 0 ; i < numberOfDirectories ; ++i) {
+    		for (int j = 0 ; j < numberOfSubDirectories ; ++j) {
+    			java.nio.file.Files.createDirectories(srcDir.resolve("dir-" + i).resolve("sub-" + i + "-" + j)) ;
+    		}
+    	}
+    }
+    
+    
+    @After
+    public void cleanup() {
+    	endpoint.stop();
+    }
+    
+    
+    private OperationResult uploadTree () throws Throwable {
+    	File destDir = new File () ;
+    	destDir.setId("dest-id") ;
+    	destDir.setTitle("dest") ;
+    	return DriveOperations.uploadDirectory(config, client, destDir, srcDir, false, null, null) ;
+    }
+    
+    
+    /**
+     * Checks that each local directory has been created once, under its parent.
+     */
+    private void checkRemoteTree () throws IOException {
+    	Map<String, File> directories = new HashMap<String, File> () ;
+    	for (File file : endpoint.getInsertedFiles()) {
+    		assertTrue (DriveUtils.isDirectory(file)) ;
+    		assertFalse (directories.containsKey(file.getTitle())) ;
+    		directories.put(file.getTitle(), file) ;
+    	}
+    	assertEquals (1 + numberOfDirectories * (1 + numberOfSubDirectories), directories.size()) ;
+    	assertEquals ("dest-id", directories.get("tree").getParents().get(0).getId()) ;
+    	for (int i = 0 ; i < numberOfDirectories ; ++i) {
+    		File dir = directories.get("dir-" + i) ;
+    		assertEquals (directories.get("tree").getId(), dir.getParents().get(0).getId()) ;
+    		for (int j = 0 ; j < numberOfSubDirectories ; ++j) {
+    			assertEquals (dir.getId(), directories.get("sub-" + i + "-" + j).getParents().get(0).getId()) ;
+    		}
+    	}
+    }
+    
+    
+    @Test
+    public void shouldCreateDirectoriesInBatches() throws Throwable {
+    	OperationResult result = uploadTree () ;
+    	assertEquals (OperationCompletionStatus.COMPLETED, result.getStatus()) ;
+    	assertFalse (result.hasError()) ;
+    	checkRemoteTree () ;
+    	
+    	// the siblings are sent together
+    	assertFalse (endpoint.getBatchSizes().isEmpty()) ;
+    	int total = endpoint.getSingleRequestCount() ;
+    	for (int size : endpoint.getBatchSizes()) {
+    		total += size ;
+    	}
+    	assertEquals (endpoint.getInsertedFiles().size(), total) ;
+    	assertTrue (endpoint.getBatchSizes().size() + endpoint.getSingleRequestCount() < endpoint.getInsertedFiles().size() / 2) ;
+    }
+    
+    
+    @Test
+    public void shouldFallBackToSingleRequestsWhenBatchesFail() throws Throwable {
+    	endpoint.setBatchFailure(true);
+    	OperationResult result = uploadTree () ;
+    	assertEquals (OperationCompletionStatus.COMPLETED, result.getStatus()) ;
+    	assertFalse (result.hasError()) ;
+    	checkRemoteTree () ;
+    	
+    	assertTrue (endpoint.getBatchSizes().isEmpty()) ;
+    	assertEquals (endpoint.getInsertedFiles().size(), endpoint.getSingleRequestCount()) ;
+    }
+    
+    
+    @Test
+    public void shouldNotDuplicateDirectoriesWhenBatchResponsesAreLost() throws Throwable {
+    	// the directories are created, but the client does not know
+    	endpoint.setBatchResponseLoss(true);
+    	OperationResult result = uploadTree () ;
+    	assertEquals (OperationCompletionStatus.COMPLETED, result.getStatus()) ;
+    	assertFalse (result.hasError()) ;
+    	checkRemoteTree () ;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.api.services.drive.Drive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class DriveUtilsTest {
+	
+	private static final int MB = 1024 * 1024 ;
+	
+	private LocalDriveEndpoint endpoint = null ;
+	private Drive client = null ;
+	
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+	
+	
+    @Before
+    public void init() throws Exception {
+    	endpoint = new LocalDriveEndpoint () ;
+    	client = endpoint.newClient() ;
+    }
+    
+    
+    @After
+    public void cleanup() {
+    	endpoint.stop();
+    }
+    
+    
+    private File newLargeFile () throws IOException {
+    	File file = tmpFolder.newFile("large.bin") ;
+    	Random random = new Random (42) ;
+    	byte[] block = new byte[MB] ;
+    	try (OutputStream out = Files.newOutputStream(file.toPath())) {
+    		// just above the threshold of the large files, and not a multiple of the chunk size
+    		for (int i = 0 ; i < 31 ; ++i) {
+    			random.nextBytes(block);
+    			out.write(block);
+    		}
+    		out.write(block, 0, 12345);
+    	}
+    	return file ;
+    }
+    
+    
+    @Test
+    public void shouldSendLargeFileThroughMediaUploader() throws Exception {
+    	LocalConfiguration config = new LocalConfiguration ()
+    		.setUploadProperty("mediaUploader", true)
+    		.setUploadProperty("minChunkSize", 1024)
+    		.setUploadProperty("maxChunkSize", 4096) ;
+    	File file = newLargeFile () ;
+    	String md5 ;
+    	try (InputStream in = new FileInputStream (file)) {
+    		md5 = DigestUtils.md5Hex(in) ;
+    	}
+    	com.google.api.services.drive.model.File uploaded = DriveUtils.insertFile(config, client, "large.bin", null, 
+    			DriveUtils.newId("parent"), null, file.getPath(), null) ;
+    	assertEquals ("large.bin", uploaded.getTitle()) ;
+    	assertTrue (uploaded.getId().startsWith("id-")) ;
+    	assertEquals (file.length(), uploaded.getFileSize().longValue()) ;
+    	assertEquals (md5, uploaded.getMd5Checksum()) ;
+    	// the chunks are sized by the chunk sizer, within the limits of the settings
+    	List<Integer> chunkSizes = endpoint.getChunkSizes() ;
+    	assertTrue (chunkSizes.size() > 1) ;
+    	for (int i = 0 ; i < chunkSizes.size() - 1 ; ++i) {
+    		assertTrue (chunkSizes.get(i) >= MB && chunkSizes.get(i) <= 4 * MB) ;
+    		assertEquals (0, chunkSizes.get(i) % ChunkSizer.unit) ;
+    	}
+    }
+    
+    
+    @Test
+    public void shouldVerifyTheChecksumOfTheMediaUpload() throws Exception {
+    	LocalConfiguration config = new LocalConfiguration ()
+    		.setUploadProperty("mediaUploader", true) ;
+    	File file = newLargeFile () ;
+    	String md5 ;
+    	try (InputStream in = new FileInputStream (file)) {
+    		md5 = DigestUtils.md5Hex(in) ;
+    	}
+    	// half of each chunk is sent again: those bytes are not hashed twice
+    	endpoint.setPartialChunks(true) ;
+    	assertEquals (md5, DriveUtils.insertFile(config, client, "large.bin", null, 
+    			DriveUtils.newId("parent"), null, file.getPath(), null).getMd5Checksum()) ;
+    	
+    	endpoint.setPartialChunks(false) ;
+    	endpoint.setChecksumMismatch(true) ;
+    	try {
+    		DriveUtils.insertFile(config, client, "large.bin", null, DriveUtils.newId("parent"), null, file.getPath(), null) ;
+    		fail ("The checksums should not match") ;
+    	} catch (IOException e) {
+    		assertTrue (e.getMessage().contains("md5")) ;
+    	}
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import io.uploader.drive.config.HasConfiguration;
+import io.uploader.drive.config.auth.HasAuthenticationSettings;
+import io.uploader.drive.config.proxy.HasProxySettings;
+import io.uploader.drive.config.proxy.Proxy;
+import io.uploader.drive.config.upload.HasUploadSettings;
+import io.uploader.drive.config.upload.UploadSettingsImpl;
+
+/**
+ * Configuration of the tests run against the {@link LocalDriveEndpoint}: no proxy, no 
+ * credential, and upload settings given as properties of the "upload" element.
+ */
+public class LocalConfiguration implements HasConfiguration {
+
+	private final XMLConfiguration config = new XMLConfiguration () ;
+	private final UploadSettingsImpl uploadSettings = new UploadSettingsImpl ("upload") ;
+	
+	
+	LocalConfiguration setUploadProperty (String name, Object value) {
+		config.setProperty("upload." + name, value) ;
+		uploadSettings.setConfig(config) ;
+		return this ;
+	}
+	
+	
+	@Override
+	public String getAppName() {
+		return "drive-uploader-test" ;
+	}
+
+	@Override
+	public String getAppVersion() {
+		return "test" ;
+	}
+
+	@Override
+	public String getDataStoreDirectory() {
+		return System.getProperty("java.io.tmpdir") ;
+	}
+
+	@Override
+	public HasProxySettings getHttpProxySettings() {
+		return null ;
+	}
+
+	@Override
+	public HasProxySettings getHttpsProxySettings() {
+		return null ;
+	}
+
+	@Override
+	public void updateProxy(Proxy newProxy) {
+	}
+
+	@Override
+	public String getTmpDirectory() {
+		return System.getProperty("java.io.tmpdir") ;
+	}
+
+	@Override
+	public Credential getCredential() {
+		return null ;
+	}
+
+	@Override
+	public HasAuthenticationSettings getAuthenticationSettings() {
+		return null ;
+	}
+
+	@Override
+	public HasUploadSettings getUploadSettings() {
+		return uploadSettings ;
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local stand-in of the Drive API, so that the batching and the uploads can be tested offline.
+ * 
+ * <p>
+ * It answers the files insertion and trashing, either as single requests or within 
+ * multipart batch requests, and records the size of each batch it receives. The 
+ * insertion of a file whose title starts with {@link #failurePrefix} is rejected 
+ * with a 403 error, and all the batches are rejected with a 503 error after a call to 
+ * {@link #setBatchFailure(boolean)}, or carried out but answered with a 503 error (as if 
+ * the response was lost) after a call to {@link #setBatchResponseLoss(boolean)}. The 
+ * inserted files are listed by parent, title and MIME type.
+ * </p>
+ * 
+ * <p>
+ * It also answers the resumable uploads (initiation, then chunks acknowledged with 
+ * a 308 status until the last one), and records the size of each chunk it receives. 
+ * It may keep only the first half of each chunk ({@link #setPartialChunks(boolean)}), 
+ * or report a wrong checksum ({@link #setChecksumMismatch(boolean)}).
+ * </p>
+ */
+class LocalDriveEndpoint implements HttpHandler {
+
+	static final String failurePrefix = "fail" ;
+	
+	private static final String responseBoundary = "batch_response" ;
+	private static final String crlf = "\r\n" ;
+	private static final String uploadSessionPath = "/upload/session/" ;
+	private static final Pattern parentQuery = Pattern.compile("'([^']*)' in parents") ;
+	private static final Pattern titleQuery = Pattern.compile("title = '([^']*)'") ;
+	private static final Pattern mimeTypeQuery = Pattern.compile("mimeType='([^']*)'") ;
+	
+	private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance() ;
+	private final HttpServer server ;
+	private final AtomicInteger idCounter = new AtomicInteger () ;
+	private final AtomicInteger singleRequestCounter = new AtomicInteger () ;
+	private final List<Integer> batchSizes = new CopyOnWriteArrayList<Integer> () ;
+	private final List<Integer> chunkSizes = new CopyOnWriteArrayList<Integer> () ;
+	private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<String, UploadSession> () ;
+	private final List<File> insertedFiles = new CopyOnWriteArrayList<File> () ;
+	private volatile boolean batchFailure = false ;
+	private volatile boolean batchResponseLoss = false ;
+	private volatile boolean partialChunks = false ;
+	private volatile boolean checksumMismatch = false ;
+	
+	LocalDriveEndpoint () throws IOException {
+		super () ;
+		server = HttpServer.create(new InetSocketAddress ("localhost", 0), 0) ;
+		server.createContext("/", this) ;
+		server.start();
+	}
+	
+	
+	Drive newClient () {
+		return newClient (new com.google.api.client.http.javanet.NetHttpTransport ()) ;
+	}
+	
+	
+	Drive newClient (HttpTransport transport) {
+		return new Drive.Builder(transport, jsonFactory, null)
+			.setRootUrl("http://localhost:" + server.getAddress().getPort() + "/")
+			.setApplicationName("drive-uploader-test")
+			.build() ;
+	}
+	
+	
+	List<Integer> getBatchSizes () {
+		return batchSizes ;
+	}
+	
+	
+	List<Integer> getChunkSizes () {
+		return chunkSizes ;
+	}
+	
+	
+	/**
+	 * @return the files inserted so far (uploads and directories)
+	 */
+	List<File> getInsertedFiles () {
+		return insertedFiles ;
+	}
+	
+	
+	void setBatchFailure (boolean batchFailure) {
+		this.batchFailure = batchFailure ;
+	}
+	
+	
+	void setBatchResponseLoss (boolean batchResponseLoss) {
+		this.batchResponseLoss = batchResponseLoss ;
+	}
+	
+	
+	void setPartialChunks (boolean partialChunks) {
+		this.partialChunks = partialChunks ;
+	}
+	
+	
+	void setChecksumMismatch (boolean checksumMismatch) {
+		this.checksumMismatch = checksumMismatch ;
+	}
+	
+	
+	int getSingleRequestCount () {
+		return singleRequestCounter.get() ;
+	}
+	
+	
+	void stop () {
+		server.stop(0);
+	}
+	
+	
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody() ;
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream (in) ;
+		}
+		byte[] content = read (in) ;
+		String body = new String (content, StandardCharsets.UTF_8) ;
+		String path = exchange.getRequestURI().getPath() ;
+		if (path.startsWith(uploadSessionPath)) {
+			uploadChunk (exchange, path.substring(uploadSessionPath.length()), content) ;
+		} else if (path.startsWith("/upload/")) {
+			initiateUpload (exchange, body) ;
+		} else if (path.endsWith("/batch") && batchFailure) {
+			send (exchange, 503, "application/json; charset=UTF-8", "{\"error\":{\"code\":503,\"message\":\"Backend Error\"}}") ;
+		} else if (path.endsWith("/batch")) {
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type") ;
+			String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()) ;
+			StringBuilder response = new StringBuilder () ;
+			int count = 0 ;
+			for (String part : body.split("--" + boundary)) {
+				if (part.trim().isEmpty() || part.startsWith("--")) {
+					continue ;
+				}
+				// skip the part headers, then split the embedded request
+				String request = part.substring(part.indexOf(crlf + crlf) + 2 * crlf.length()) ;
+				String requestLine = request.substring(0, request.indexOf(crlf)) ;
+				int bodyIndex = request.indexOf(crlf + crlf) ;
+				String requestBody = (bodyIndex < 0) ? ("") : (request.substring(bodyIndex + 2 * crlf.length()).trim()) ;
+				// the path of the embedded request, without the query (e.g., fields)
+				Answer answer = answer (URI.create(requestLine.split(" ")[1]).getPath(), requestBody) ;
+				response.append("--").append(responseBoundary).append(crlf) ;
+				response.append("Content-Type: application/http").append(crlf) ;
+				response.append("Content-ID: <response-").append(++count).append(">").append(crlf) ;
+				response.append(crlf) ;
+				response.append("HTTP/1.1 ").append(answer.code).append(" ").append((answer.code == 200) ? ("OK") : ("Forbidden")).append(crlf) ;
+				response.append("Content-Type: application/json; charset=UTF-8").append(crlf) ;
+				response.append("Content-Length: ").append(answer.json.getBytes(StandardCharsets.UTF_8).length).append(crlf) ;
+				response.append(crlf) ;
+				response.append(answer.json).append(crlf) ;
+			}
+			response.append("--").append(responseBoundary).append("--").append(crlf) ;
+			if (batchResponseLoss) {
+				send (exchange, 503, "application/json; charset=UTF-8", "{\"error\":{\"code\":503,\"message\":\"Backend Error\"}}") ;
+				return ;
+			}
+			batchSizes.add(count) ;
+			send (exchange, 200, "multipart/mixed; boundary=" + responseBoundary, response.toString()) ;
+		} else if ("GET".equals(exchange.getRequestMethod()) && path.endsWith("/files")) {
+			send (exchange, 200, "application/json; charset=UTF-8", list (exchange.getRequestURI().getQuery())) ;
+		} else {
+			singleRequestCounter.incrementAndGet() ;
+			Answer answer = answer (exchange.getRequestURI().getPath(), body) ;
+			send (exchange, answer.code, "application/json; charset=UTF-8", answer.json) ;
+		}
+	}
+	
+	
+	private static class Answer {
+		
+		final int code ;
+		final String json ;
+		
+		Answer (int code, String json) {
+			super () ;
+			this.code = code ;
+			this.json = json ;
+		}
+	}
+	
+	
+	private static class UploadSession {
+		
+		final File file ;
+		final MessageDigest digest = DigestUtils.getMd5Digest() ;
+		long received = 0 ;
+		
+		UploadSession (File file) {
+			super () ;
+			this.file = file ;
+		}
+	}
+	
+	
+	private void initiateUpload (HttpExchange exchange, String body) throws IOException {
+		Answer answer = answer ("/upload/drive/v2/files", body) ;
+		if (answer.code != 200) {
+			send (exchange, answer.code, "application/json; charset=UTF-8", answer.json) ;
+			return ;
+		}
+		String sessionId = "session-" + idCounter.incrementAndGet() ;
+		uploadSessions.put(sessionId, new UploadSession (jsonFactory.fromString(answer.json, File.class))) ;
+		exchange.getResponseHeaders().set("Location", "http://localhost:" + server.getAddress().getPort() + uploadSessionPath + sessionId) ;
+		send (exchange, 200, "application/json; charset=UTF-8", "") ;
+	}
+	
+	
+	private void uploadChunk (HttpExchange exchange, String sessionId, byte[] content) throws IOException {
+		UploadSession session = uploadSessions.get(sessionId) ;
+		if (session == null) {
+			send (exchange, 404, "application/json; charset=UTF-8", "{\"error\":{\"code\":404,\"message\":\"Not Found\"}}") ;
+			return ;
+		}
+		// e.g., "bytes 0-524287/1048576", or "bytes */1048576" when the status is queried
+		String contentRange = exchange.getRequestHeaders().getFirst("Content-Range") ;
+		String range = contentRange.substring("bytes ".length(), contentRange.indexOf('/')) ;
+		long total = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1)) ;
+		if (!"*".equals(range)) {
+			long first = Long.parseLong(range.substring(0, range.indexOf('-'))) ;
+			if (first != session.received) {
+				send (exchange, 400, "application/json; charset=UTF-8", "{\"error\":{\"code\":400,\"message\":\"Bad Range\"}}") ;
+				return ;
+			}
+			// the server may keep only part of the chunk, the client then sends the rest again
+			int kept = (partialChunks && content.length > 1) ? (content.length / 2) : (content.length) ;
+			chunkSizes.add(kept) ;
+			session.digest.update(content, 0, kept) ;
+			session.received += kept ;
+		}
+		if (session.received < total) {
+			if (session.received > 0) {
+				exchange.getResponseHeaders().set("Range", "bytes=0-" + (session.received - 1)) ;
+			}
+			send (exchange, 308, "text/plain", "") ;
+			return ;
+		}
+		uploadSessions.remove(sessionId) ;
+		session.file.setFileSize(session.received) ;
+		String md5 = Hex.encodeHexString(session.digest.digest()) ;
+		session.file.setMd5Checksum((checksumMismatch) ? (new StringBuilder (md5).reverse().toString()) : (md5)) ;
+		send (exchange, 200, "application/json; charset=UTF-8", jsonFactory.toString(session.file)) ;
+	}
+	
+	
+	private Answer answer (String url, String body) throws IOException {
+		File file = null ;
+		if (url.endsWith("/trash")) {
+			String[] segments = url.split("/") ;
+			file = new File () ;
+			file.setId(segments[segments.length - 2]) ;
+		} else {
+			file = jsonFactory.fromString(body, File.class) ;
+			if (file.getTitle() != null && file.getTitle().startsWith(failurePrefix)) {
+				return new Answer (403, "{\"error\":{\"code\":403,\"message\":\"Rate Limit Exceeded\"," 
+						+ "\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"rateLimitExceeded\",\"message\":\"Rate Limit Exceeded\"}]}}") ;
+			}
+			file.setId("id-" + idCounter.incrementAndGet()) ;
+			insertedFiles.add(file) ;
+		}
+		return new Answer (200, jsonFactory.toString(file)) ;
+	}
+	
+	
+	/**
+	 * Lists the inserted files whose parent is given by the query (e.g., "'id-1' in parents"), 
+	 * and optionally the title and the MIME type.
+	 */
+	private String list (String query) throws IOException {
+		query = (query == null) ? ("") : (query) ;
+		Matcher parent = parentQuery.matcher(query) ;
+		Matcher title = titleQuery.matcher(query) ;
+		Matcher mimeType = mimeTypeQuery.matcher(query) ;
+		String titleValue = (title.find()) ? (title.group(1)) : (null) ;
+		String mimeTypeValue = (mimeType.find()) ? (mimeType.group(1)) : (null) ;
+		List<File> items = new ArrayList<File> () ;
+		if (parent.find()) {
+			for (File file : insertedFiles) {
+				if (file.getParents() == null 
+						|| (titleValue != null && !titleValue.equals(file.getTitle())) 
+						|| (mimeTypeValue != null && !mimeTypeValue.equals(file.getMimeType()))) {
+					continue ;
+				}
+				for (ParentReference reference : file.getParents()) {
+					if (parent.group(1).equals(reference.getId())) {
+						items.add(file) ;
+					}
+				}
+			}
+		}
+		return jsonFactory.toString(new FileList ().setItems(items)) ;
+	}
+	
+	
+	private static byte[] read (InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream () ;
+		byte[] buffer = new byte[8192] ;
+		int n ;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray() ;
+	}
+	
+	
+	private static void send (HttpExchange exchange, int code, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8) ;
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		// no body at all rather than a chunked empty one
+		exchange.sendResponseHeaders(code, (bytes.length == 0) ? (-1) : (bytes.length));
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
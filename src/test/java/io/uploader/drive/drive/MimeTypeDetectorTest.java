@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class MimeTypeDetectorTest {
+	
+	private static final byte[] pngHeader = new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 0x0d, 'I', 'H', 'D', 'R'} ;
+	private static final byte[] pdfHeader = "%PDF-1.4\n1 0 obj\n".getBytes(StandardCharsets.US_ASCII) ;
+	
+	private final MimeTypeDetector detector = MimeTypeDetector.INSTANCE ;
+	private Path srcDir = null ;
+	
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+	
+	
+    @Before
+    public void init() throws Exception {
+    	srcDir = tmpFolder.newFolder("src").toPath() ;
+    }
+    
+    
+    private Path newFile (String name, byte[] content) throws IOException {
+    	return Files.write(srcDir.resolve(name), content) ;
+    }
+    
+    
+    @Test
+    public void shouldResolveTheTypeFromTheExtension() throws Exception {
+    	
+    	assertEquals ("application/pdf", detector.detect(newFile ("document.pdf", pdfHeader))) ;
+    	assertEquals ("image/png", detector.detect(newFile ("image.PNG", pngHeader))) ;
+    	assertEquals ("text/plain", detector.detect(newFile ("notes.txt", "notes".getBytes(StandardCharsets.UTF_8)))) ;
+    	
+    	// the content is not read when the extension is known
+    	assertEquals ("application/pdf", detector.detect(newFile ("image.pdf", pngHeader))) ;
+    	assertEquals ("image/jpeg", detector.detect(srcDir.resolve("missing.jpg"))) ;
+    	
+    	// extension out of the table, resolved on demand
+    	assertEquals ("application/epub+zip", detector.detect(srcDir.resolve("book.epub"))) ;
+    	assertEquals ("application/epub+zip", detector.detect(srcDir.resolve("other.EPUB"))) ;
+    }
+    
+    
+    @Test
+    public void shouldSniffTheContentWhenTheExtensionIsUnknown() throws Exception {
+    	
+    	assertEquals ("image/png", detector.detect(newFile ("image", pngHeader))) ;
+    	assertEquals ("application/pdf", detector.detect(newFile ("document.unknownext", pdfHeader))) ;
+    	assertEquals ("application/pdf", detector.detect(newFile ("document.", pdfHeader))) ;
+    	
+    	assertNull (detector.detect(null)) ;
+    	assertNull (detector.detect(srcDir.resolve("missing.unknownext"))) ;
+    }
+    
+    
+    @Test
+    public void shouldNotShareTheCachedTypeOfFilesWithDifferentContent() throws Exception {
+    	
+    	Path png = newFile ("first.cachedext", pngHeader) ;
+    	Path pdf = newFile ("second.cachedext", pdfHeader) ;
+    	
+    	assertEquals ("image/png", detector.detect(png)) ;
+    	assertEquals ("application/pdf", detector.detect(pdf)) ;
+    	// cached results
+    	assertEquals ("image/png", detector.detect(png)) ;
+    	assertEquals ("application/pdf", detector.detect(pdf)) ;
+    	assertEquals ("image/png", detector.detect(newFile ("third.cachedext", pngHeader))) ;
+    	
+    	Path noExtensionPng = newFile ("first", pngHeader) ;
+    	Path noExtensionPdf = newFile ("second", pdfHeader) ;
+    	assertEquals ("image/png", detector.detect(noExtensionPng)) ;
+    	assertEquals ("application/pdf", detector.detect(noExtensionPdf)) ;
+    }
+}
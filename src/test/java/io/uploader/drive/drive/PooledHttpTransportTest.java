@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import io.uploader.drive.config.proxy.ProxySettingsImpl;
+import io.uploader.drive.drive.largefile.HttpClientUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PooledHttpTransportTest {
+	
+	private LocalDriveEndpoint endpoint = null ;
+	private XMLConfiguration config = null ;
+	private ProxySettingsImpl proxySettings = null ;
+	private Drive client = null ;
+	
+	
+    @Before
+    public void init() throws Exception {
+    	endpoint = new LocalDriveEndpoint () ;
+    	config = new XMLConfiguration () ;
+    	proxySettings = new ProxySettingsImpl ("proxy.http", 80, "http") ;
+    	proxySettings.setConfig(config);
+    	client = endpoint.newClient(HttpClientUtils.getHttpTransport(proxySettings)) ;
+    }
+    
+    
+    @After
+    public void cleanup() {
+    	endpoint.stop();
+    }
+    
+    
+    @Test
+    public void shouldSendSingleAndBatchedRequests() throws Exception {
+    	File dir = DriveUtils.newInsertDirectoryRequest(client, "alone", null, null).execute() ;
+    	assertEquals ("alone", dir.getTitle()) ;
+    	assertEquals (1, endpoint.getSingleRequestCount()) ;
+    	
+    	DriveBatcher batcher = new DriveBatcher (client) ;
+    	try {
+    		List<ListenableFuture<File>> futures = new ArrayList<ListenableFuture<File>> () ;
+    		for (int i = 0 ; i < 20 ; ++i) {
+    			futures.add(batcher.submit(DriveUtils.newInsertDirectoryRequest(client, "dir-" + i, null, DriveUtils.newId("parent")))) ;
+    		}
+    		for (int i = 0 ; i < futures.size() ; ++i) {
+    			assertEquals ("dir-" + i, futures.get(i).get().getTitle()) ;
+    		}
+    	} finally {
+    		batcher.shutdown();
+    	}
+    	assertTrue (!endpoint.getBatchSizes().isEmpty()) ;
+    }
+    
+    
+    @Test
+    public void shouldFollowTheChangesOfTheProxySettings() throws Exception {
+    	assertEquals ("before", DriveUtils.newInsertDirectoryRequest(client, "before", null, null).execute().getTitle()) ;
+    	
+    	// a proxy nobody listens to
+    	int closedPort ;
+    	try (ServerSocket socket = new ServerSocket (0)) {
+    		closedPort = socket.getLocalPort() ;
+    	}
+    	config.setProperty("proxy.http.active", true);
+    	config.setProperty("proxy.http.host", "localhost");
+    	config.setProperty("proxy.http.port", closedPort);
+    	config.setProperty("proxy.http.user", "user");
+    	config.setProperty("proxy.http.password", "password");
+    	proxySettings.setConfig(config);
+    	try {
+    		DriveUtils.newInsertDirectoryRequest(client, "through-proxy", null, null).execute() ;
+    		fail ("The request should have gone through the proxy") ;
+    	} catch (IOException e) {
+    		// expected
+    	}
+    	
+    	config.setProperty("proxy.http.active", false);
+    	proxySettings.setConfig(config);
+    	assertEquals ("after", DriveUtils.newInsertDirectoryRequest(client, "after", null, null).execute().getTitle()) ;
+    	assertEquals (2, endpoint.getSingleRequestCount()) ;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.uploader.drive.drive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SyncManifestTest {
+	
+	private String dataStoreDirectory = null ;
+	private Path srcDir = null ;
+	
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+	
+	
+    @Before
+    public void init() throws Exception {
+    	dataStoreDirectory = tmpFolder.newFolder("store").getPath() ;
+    	srcDir = tmpFolder.newFolder("src").toPath() ;
+    }
+    
+    
+    private Path newFile (String name, String content) throws IOException {
+    	return Files.write(srcDir.resolve(name), content.getBytes(StandardCharsets.UTF_8)) ;
+    }
+    
+    
+    private static BasicFileAttributes attr (Path path) throws IOException {
+    	return Files.readAttributes(path, BasicFileAttributes.class) ;
+    }
+    
+    
+    private static com.google.api.services.drive.model.File newDriveFile (String id, String md5) {
+    	com.google.api.services.drive.model.File file = new com.google.api.services.drive.model.File () ;
+    	file.setId(id) ;
+    	file.setMd5Checksum(md5) ;
+    	return file ;
+    }
+    
+    
+    private Path getManifestPath () {
+    	File[] files = new File (dataStoreDirectory, "manifests").listFiles() ;
+    	assertEquals (1, files.length) ;
+    	return files[0].toPath() ;
+    }
+    
+    
+    @Test
+    public void shouldReloadTheRecordedEntries() throws Exception {
+    	Path file = newFile ("a.txt", "content") ;
+    	Path document = newFile ("b.txt", "document") ;
+    	SyncManifest manifest = SyncManifest.open(dataStoreDirectory, srcDir, "dest-id") ;
+    	manifest.put(file, attr (file), newDriveFile ("id-1", "md5-1"), "parent-id") ;
+    	manifest.put(document, attr (document), newDriveFile ("id-2", null), "parent-id") ;
+    	manifest.close() ;
+    	
+    	manifest = SyncManifest.open(dataStoreDirectory, srcDir, "dest-id") ;
+    	SyncManifest.Entry entry = manifest.get(file) ;
+    	assertNotNull (entry) ;
+    	assertEquals ("id-1", entry.getDriveId()) ;
+    	assertEquals ("md5-1", entry.getMd5()) ;
+    	assertEquals ("parent-id", entry.getDriveParentId()) ;
+    	assertTrue (entry.isUnchanged(attr (file), "parent-id")) ;
+    	// no checksum, not the string "null"
+    	assertNull (manifest.get(document).getMd5()) ;
+    	assertEquals ("id-2", manifest.get(document).getDriveId()) ;
+    	manifest.close() ;
+    	
+    	// another destination is another task
+    	manifest = SyncManifest.open(dataStoreDirectory, srcDir, "other-dest-id") ;
+    	assertNull (manifest.get(file)) ;
+    	manifest.close() ;
+    }
+    
+    
+    @Test
+    public void shouldCompactTheLogOnReopen() throws Exception {
+    	Path file = newFile ("a.txt", "content") ;
+    	SyncManifest manifest = SyncManifest.open(dataStoreDirectory, srcDir, "dest-id") ;
+    	manifest.close() ;
+    	
+    	// as left by an interrupted run: the same file recorded twice, then a truncated line
+    	Path manifestPath = getManifestPath () ;
+    	long size = attr (file).size() ;
+    	long lastModified = attr (file).lastModifiedTime().toMillis() ;
+    	String lines = size + "\t" + lastModified + "\tmd5-1\tid-1\tparent-id\ta.txt\n"
+    			+ size + "\t" + lastModified + "\tmd5-2\tid-2\tparent-id\ta.txt\n"
+    			+ size + "\t" + lastModified + "\tmd5-3\tid-3" ;
+    	Files.write(manifestPath, lines.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND) ;
+    	
+    	manifest = SyncManifest.open(dataStoreDirectory, srcDir, "dest-id") ;
+    	assertEquals ("id-2", manifest.get(file).getDriveId()) ;
+    	List<String> compacted = Files.readAllLines(manifestPath, StandardCharsets.UTF_8) ;
+    	assertEquals (1, compacted.size()) ;
+    	assertTrue (compacted.get(0).contains("id-2")) ;
+    	manifest.close() ;
+    }
+    
+    
+    @Test
+    public void shouldInvalidateTheChangedFiles() throws Exception {
+    	Path file = newFile ("a.txt", "content") ;
+    	SyncManifest manifest = SyncManifest.open(dataStoreDirectory, srcDir, "dest-id") ;
+    	manifest.put(file, attr (file), newDriveFile ("id-1", "md5-1"), "parent-id") ;
+    	SyncManifest.Entry entry = manifest.get(file) ;
+    	assertTrue (entry.isUnchanged(attr (file), "parent-id")) ;
+    	
+    	// moved to another Drive directory
+    	assertFalse (entry.isUnchanged(attr (file), "other-parent-id")) ;
+    	
+    	// touched
+    	FileTime lastModified = attr (file).lastModifiedTime() ;
+    	Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 10000)) ;
+    	assertFalse (entry.isUnchanged(attr (file), "parent-id")) ;
+    	
+    	// same modification time, other size
+    	Files.write(file, "other content".getBytes(StandardCharsets.UTF_8)) ;
+    	Files.setLastModifiedTime(file, lastModified) ;
+    	assertFalse (entry.isUnchanged(attr (file), "parent-id")) ;
+    	manifest.close() ;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Loic Merckel
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.uploader.drive.drive.largefile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.uploader.drive.drive.LocalConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class UploadSessionJournalTest {
+	
+	private final UploadSessionJournal journal = UploadSessionJournal.INSTANCE ;
+	private String dataStoreDirectory = null ;
+	private Path srcDir = null ;
+	
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+	
+	
+    @Before
+    public void init() throws Exception {
+    	journal.close() ;
+    	dataStoreDirectory = tmpFolder.newFolder("store").getPath() ;
+    	srcDir = tmpFolder.newFolder("src").toPath() ;
+    	journal.open(dataStoreDirectory) ;
+    }
+    
+    
+    @After
+    public void cleanup() throws Exception {
+    	journal.close() ;
+    }
+    
+    
+    private Path newFile (String name, String content) throws IOException {
+    	return Files.write(srcDir.resolve(name), content.getBytes(StandardCharsets.UTF_8)) ;
+    }
+    
+    
+    private static BasicFileAttributes attr (Path path) throws IOException {
+    	return Files.readAttributes(path, BasicFileAttributes.class) ;
+    }
+    
+    
+    private Path getJournalPath () {
+    	return tmpFolder.getRoot().toPath().resolve("store").resolve("sessions.journal") ;
+    }
+    
+    
+    private String begin (Path file, String location) throws IOException {
+    	String key = UploadSessionJournal.newKey(file.toString(), "parentId", file.getFileName().toString()) ;
+    	journal.begin(key, file.toString(), attr (file), null, location) ;
+    	return key ;
+    }
+    
+    
+    private void reopen () throws IOException {
+    	journal.close() ;
+    	journal.open(dataStoreDirectory) ;
+    }
+    
+    
+    @Test
+    public void shouldResumeTheSessionsLeftInTheJournal() throws Exception {
+    	
+    	Path completed = newFile ("completed.bin", "completed") ;
+    	Path interrupted = newFile ("interrupted.bin", "interrupted") ;
+    	
+    	String completedKey = begin (completed, "https://localhost/upload/session/1") ;
+    	String interruptedKey = begin (interrupted, "https://localhost/upload/session/2") ;
+    	journal.update(completedKey, 4) ;
+    	journal.update(interruptedKey, 6) ;
+    	journal.end(completedKey) ;
+    	
+    	reopen () ;
+    	
+    	List<UploadSessionJournal.Session> sessions = journal.claimAll() ;
+    	assertEquals (1, sessions.size()) ;
+    	UploadSessionJournal.Session session = sessions.get(0) ;
+    	assertEquals (interruptedKey, session.getKey()) ;
+    	assertEquals (interrupted.toString(), session.getPath()) ;
+    	assertEquals (6, session.getOffset()) ;
+    	assertNull (session.getMd5()) ;
+    	assertEquals ("https://localhost/upload/session/2", session.getLocation()) ;
+    	assertTrue (session.isUnchanged(attr (interrupted))) ;
+    	
+    	// the journal was compacted when opened: the completed session is gone
+    	List<String> lines = Files.readAllLines(getJournalPath (), StandardCharsets.UTF_8) ;
+    	assertEquals (1, lines.size()) ;
+    	assertTrue (lines.get(0).startsWith("S\t" + interruptedKey + "\t")) ;
+    }
+    
+    
+    @Test
+    public void shouldIgnoreTruncatedLastLine() throws Exception {
+    	
+    	Path file = newFile ("file.bin", "content") ;
+    	String key = begin (file, "https://localhost/upload/session/1") ;
+    	journal.update(key, 3) ;
+    	journal.close() ;
+    	
+    	// interruption while writing the next record
+    	String truncated = "S\t" + key + "\t7\t" ;
+    	Files.write(getJournalPath (), truncated.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND) ;
+    	
+    	journal.open(dataStoreDirectory) ;
+    	
+    	List<UploadSessionJournal.Session> sessions = journal.claimAll() ;
+    	assertEquals (1, sessions.size()) ;
+    	assertEquals (key, sessions.get(0).getKey()) ;
+    	assertEquals (3, sessions.get(0).getOffset()) ;
+    	assertEquals ("https://localhost/upload/session/1", sessions.get(0).getLocation()) ;
+    	
+    	// and the new records are not appended to the truncated line
+    	journal.update(key, 5) ;
+    	reopen () ;
+    	sessions = journal.claimAll() ;
+    	assertEquals (1, sessions.size()) ;
+    	assertEquals (5, sessions.get(0).getOffset()) ;
+    }
+    
+    
+    @Test
+    public void shouldCompactTheJournalAsItGrows() throws Exception {
+    	
+    	Path file = newFile ("file.bin", "content") ;
+    	String key = begin (file, "https://localhost/upload/session/1") ;
+    	final int updates = 3000 ;
+    	for (int i = 1 ; i <= updates ; ++i) {
+    		journal.update(key, i) ;
+    	}
+    	
+    	List<String> lines = Files.readAllLines(getJournalPath (), StandardCharsets.UTF_8) ;
+    	assertTrue (lines.size() < updates / 2) ;
+    	
+    	reopen () ;
+    	List<UploadSessionJournal.Session> sessions = journal.claimAll() ;
+    	assertEquals (1, sessions.size()) ;
+    	assertEquals (updates, sessions.get(0).getOffset()) ;
+    }
+    
+    
+    @Test
+    public void shouldClaimSessionsOnce() throws Exception {
+    	
+    	Path first = newFile ("first.bin", "first") ;
+    	Path second = newFile ("second.bin", "second") ;
+    	String firstKey = begin (first, "https://localhost/upload/session/1") ;
+    	String secondKey = begin (second, "https://localhost/upload/session/2") ;
+    	
+    	// the sessions begun are claimed by their upload
+    	assertTrue (journal.claimAll().isEmpty()) ;
+    	try {
+    		journal.claim(firstKey) ;
+    		fail ("The session should already be claimed") ;
+    	} catch (IOException e) {
+    		// expected
+    	}
+    	
+    	journal.release(firstKey) ;
+    	List<UploadSessionJournal.Session> sessions = journal.claimAll() ;
+    	assertEquals (1, sessions.size()) ;
+    	assertEquals (firstKey, sessions.get(0).getKey()) ;
+    	
+    	journal.release(firstKey) ;
+    	assertNotNull (journal.claim(firstKey)) ;
+    	assertNull (journal.claim("unknown")) ;
+    	
+    	// the claims are not persisted
+    	reopen () ;
+    	assertEquals (2, journal.claimAll().size()) ;
+    	journal.release(secondKey) ;
+    	assertEquals (secondKey, journal.claim(secondKey).getKey()) ;
+    }
+    
+    
+    @Test
+    public void shouldDropTheSessionsOfModifiedOrRemovedFiles() throws Exception {
+    	
+    	Path modified = newFile ("modified.bin", "modified") ;
+    	Path removed = newFile ("removed.bin", "removed") ;
+    	String modifiedKey = begin (modified, "https://localhost/upload/session/1") ;
+    	String removedKey = begin (removed, "https://localhost/upload/session/2") ;
+    	journal.update(modifiedKey, 2) ;
+    	journal.update(removedKey, 2) ;
+    	
+    	// previous run interrupted
+    	reopen () ;
+    	Files.write(modified, "modified again".getBytes(StandardCharsets.UTF_8)) ;
+    	Files.setLastModifiedTime(modified, FileTime.fromMillis(attr (modified).lastModifiedTime().toMillis() + 10000)) ;
+    	Files.delete(removed) ;
+    	
+    	assertEquals (0, UploadSessionRecovery.resumeAll(new LocalConfiguration ())) ;
+    	
+    	reopen () ;
+    	assertTrue (journal.claimAll().isEmpty()) ;
+    	assertEquals (0, Files.size(getJournalPath ())) ;
+    }
+}